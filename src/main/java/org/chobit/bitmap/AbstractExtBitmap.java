@@ -1,10 +1,11 @@
 package org.chobit.bitmap;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Objects;
-import java.util.function.BiFunction;
+import java.util.Spliterator;
+import java.util.function.IntFunction;
+import java.util.function.LongConsumer;
+import java.util.stream.IntStream;
 
 /**
  * 抽象bitmap扩展类。
@@ -19,24 +20,99 @@ public abstract class AbstractExtBitmap<T extends AbstractExtBitmap<T, U>, U ext
         implements IBitmap<T> {
 
 
-    private final List<U> units;
+    /**
+     * unit bitmap数量达到该阈值时，逐unit的运算改为通过ForkJoin并行执行
+     */
+    private static volatile int parallelThreshold = 16;
+
+    /**
+     * 当前对象、unit bitmap目录对象及其两个数组的对象头等固定开销的估计值(字节)
+     */
+    private static final long OBJECT_OVERHEAD = 96;
+
+    /**
+     * 数组中每个对象引用占用的字节数的估计值
+     */
+    private static final long REFERENCE_BYTES = 8;
+
+    /**
+     * 缓存值未知，需要重新计算
+     */
+    private static final long UNKNOWN = Long.MIN_VALUE;
+
+
+    private final UnitArray<U> units;
+
+    private final int unitBits;
+
+    private final long unitMask;
+
+    /**
+     * 自动执行runOptimize的修改次数阈值，不大于0时不自动执行
+     */
+    private long autoOptimizeThreshold;
+
+    private long mutations;
+
+    /**
+     * 缓存的基数、第一个值及最后一个值。单个值的增删时增量维护，无法增量维护的修改后置为UNKNOWN
+     */
+    private long cachedCardinality = UNKNOWN;
+
+    private long cachedFirst = UNKNOWN;
+
+    private long cachedLast = UNKNOWN;
+
+    /**
+     * unit bitmap基数的前缀和，prefixCardinalities[i]为前i个unit bitmap的基数之和。任何修改后置为null，在使用时重新计算
+     */
+    private long[] prefixCardinalities;
+
+    /**
+     * 修改计数，bitmap中的值或长度发生变化后增加
+     */
+    private long version;
 
 
     protected AbstractExtBitmap() {
-        this(new ArrayList<>());
+        this(new UnitArray<>());
     }
 
 
-    protected AbstractExtBitmap(List<U> units) {
+    protected AbstractExtBitmap(UnitArray<U> units) {
         this.units = units;
+        this.unitBits = unitBits();
+        this.unitMask = (1L << unitBits) - 1;
+    }
+
+    /**
+     * 每个bitmap单元容量的二进制位数，即每个bitmap单元的最大容量为 2^unitBits
+     * <p>
+     * 该方法会在构造函数中调用，实现中只应返回常量
+     *
+     * @return 每个bitmap单元容量的二进制位数
+     */
+    protected abstract int unitBits();
+
+
+    /**
+     * 旧版序列化格式(没有格式头)中每个bitmap单元的最大容量，仅在读取旧版数据时使用
+     *
+     * @return 旧版格式中每个bitmap单元的最大容量
+     */
+    protected long legacyMaxUnitSize() {
+        return Integer.MAX_VALUE;
     }
 
+
     /**
      * 每个bitmap单元的最大容量
      *
      * @return 每个bitmap单元的最大容量
      */
-    protected abstract long maxUnitSize();
+    protected final long maxUnitSize() {
+        return unitMask + 1;
+    }
 
 
     /**
@@ -45,7 +121,7 @@ public abstract class AbstractExtBitmap<T extends AbstractExtBitmap<T, U>, U ext
      * @param units bitmap子单元集合
      * @return 新建的bitmap
      */
-    protected abstract T combine(List<U> units);
+    protected abstract T combine(UnitArray<U> units);
 
 
     /**
@@ -56,385 +132,1472 @@ public abstract class AbstractExtBitmap<T extends AbstractExtBitmap<T, U>, U ext
     protected abstract U newUnit();
 
 
-    @Override
-    public void add(final long offset) {
-        checkOffset(offset);
-        long index = offset / maxUnitSize();
-        long unitOffset = offset % maxUnitSize();
-        while (unitsLength() <= index) {
-            appendNewUnit();
-        }
-        getUnit((int) index).add(unitOffset);
+    /**
+     * unit bitmap被快照共享时调用，此后unit bitmap被多个bitmap同时持有。默认不做任何处理
+     *
+     * @param unit 被共享的unit bitmap
+     */
+    protected void retainUnit(U unit) {
     }
 
 
-    @Override
-    public void remove(final long offset) {
-        long index = offset / maxUnitSize();
-        if (index < unitsLength()) {
-            long unitOffset = offset % maxUnitSize();
-            getUnit((int) index).remove(unitOffset);
-        }
+    /**
+     * unit bitmap不再被当前bitmap使用时调用，包括被替换、被运算结果丢弃的unit bitmap及运算中的临时unit bitmap。
+     * 默认不做任何处理，持有外部资源的unit bitmap可以在这里释放资源
+     *
+     * @param unit 不再使用的unit bitmap
+     */
+    protected void releaseUnit(U unit) {
     }
 
 
-    @Override
-    public void add(final long rangeStart, final long rangeEnd) {
-        if (rangeStart >= rangeEnd) {
-            throw new IllegalArgumentException("Range start:[" + rangeStart + "] is greater than end:[" + rangeEnd + "].");
-        }
-        checkOffset(rangeEnd);
-        long maxIndex = rangeEnd / maxUnitSize();
-        while (unitsLength() <= maxIndex) {
-            appendNewUnit();
-        }
-
-        long tmpIndex = rangeStart / maxUnitSize();
-        while (tmpIndex <= maxIndex) {
-            long start = Math.max(0, rangeStart - tmpIndex * maxUnitSize());
-            long end = Math.min(maxUnitSize(), rangeEnd - tmpIndex * maxUnitSize());
-            getUnit((int) tmpIndex).add(start, end);
-            tmpIndex++;
-        }
+    /**
+     * 设置自动优化策略：每累计修改threshold次后对整个bitmap执行一次{@link #runOptimize()}。
+     * 单个值的增删在值发生变化时计为一次修改，区间增删计为一次修改，批量添加按值的数量计算
+     *
+     * @param threshold 修改次数阈值，不大于0时不自动优化(默认)
+     */
+    public void setAutoOptimizeThreshold(long threshold) {
+        this.autoOptimizeThreshold = threshold;
+        this.mutations = 0;
     }
 
 
-    @Override
-    public void remove(final long rangeStart, final long rangeEnd) {
-        if (rangeStart >= rangeEnd) {
-            return;
-        }
-        checkOffset(rangeEnd);
-
-        long tmpIndex = rangeStart / maxUnitSize();
-        while (tmpIndex < unitsLength()) {
-            long start = Math.max(0, rangeStart - tmpIndex * maxUnitSize());
-            long end = Math.min(maxUnitSize(), rangeEnd - tmpIndex * maxUnitSize());
-            getUnit((int) tmpIndex).remove(start, end);
-            tmpIndex++;
-        }
+    /**
+     * 自动优化策略的修改次数阈值
+     *
+     * @return 修改次数阈值，不大于0表示不自动优化
+     */
+    public long getAutoOptimizeThreshold() {
+        return autoOptimizeThreshold;
     }
 
 
     @Override
-    public boolean check(long offset) {
-        long index = offset / maxUnitSize();
-        long unitOffset = offset % maxUnitSize();
-        return index < unitsLength() && getUnit((int) index).check(unitOffset);
+    public void add(final long offset) {
+        checkedAdd(offset);
     }
 
 
     @Override
-    public T and(T other) {
-        int length = Math.min(this.unitsLength(), other.unitsLength());
-        return compute(length, other, IBitmap::and);
+    public void remove(final long offset) {
+        checkedRemove(offset);
     }
 
 
+    /**
+     * 添加长整型值到当前bitmap中。与快照共享的unit bitmap中已经存在该值时直接返回，不会复制unit bitmap
+     *
+     * @param offset 长整型值
+     * @return 值原本不存在而被添加时返回true
+     */
     @Override
-    public T or(T other) {
-        int length = Math.max(this.unitsLength(), other.unitsLength());
-        return compute(length, other, IBitmap::or);
+    public boolean checkedAdd(final long offset) {
+        checkOffset(offset);
+        int index = (int) (offset >>> unitBits);
+        int pos = units.indexOf(index);
+        if (pos >= 0 && units.isShared(pos) && units.unitAt(pos).check(offset & unitMask)) {
+            return false;
+        }
+        boolean changed = getOrCreateUnit(index).checkedAdd(offset & unitMask);
+        if (changed) {
+            version++;
+            prefixCardinalities = null;
+            if (cachedCardinality != UNKNOWN) {
+                cachedCardinality++;
+            }
+            expandBounds(offset, offset);
+            mutated(1);
+        }
+        return changed;
     }
 
 
+    /**
+     * 从当前bitmap中移除长整型值。与快照共享的unit bitmap中不存在该值时直接返回，不会复制unit bitmap
+     *
+     * @param offset 长整型值
+     * @return 值原本存在而被移除时返回true
+     */
     @Override
-    public T xor(T other) {
-        int length = Math.max(this.unitsLength(), other.unitsLength());
-        return compute(length, other, IBitmap::xor);
+    public boolean checkedRemove(final long offset) {
+        long index = offset >>> unitBits;
+        int pos = index > Integer.MAX_VALUE ? -1 : units.indexOf((int) index);
+        if (pos < 0 || (units.isShared(pos) && !units.unitAt(pos).check(offset & unitMask))) {
+            return false;
+        }
+        boolean changed = writableUnitAt(units, pos).checkedRemove(offset & unitMask);
+        if (changed) {
+            version++;
+            prefixCardinalities = null;
+            if (cachedCardinality != UNKNOWN) {
+                cachedCardinality--;
+            }
+            if (offset == cachedFirst) {
+                cachedFirst = UNKNOWN;
+            }
+            if (offset == cachedLast) {
+                cachedLast = UNKNOWN;
+            }
+            mutated(1);
+        }
+        return changed;
     }
 
 
     @Override
-    public T andNot(T another) {
-        return andNot0(another);
+    public void add(final long rangeStart, final long rangeEnd) {
+        if (rangeStart >= rangeEnd) {
+            throw new IllegalArgumentException("Range start:[" + rangeStart + "] is greater than end:[" + rangeEnd + "].");
+        }
+        checkOffset(rangeStart);
+        checkOffset(rangeEnd - 1);
+        long maxIndex = (rangeEnd - 1) >>> unitBits;
+
+        for (long tmpIndex = rangeStart >>> unitBits; tmpIndex <= maxIndex; tmpIndex++) {
+            long base = unitBase((int) tmpIndex);
+            long start = Math.max(0, rangeStart - base);
+            long end = Math.min(maxUnitSize(), rangeEnd - base);
+            getOrCreateUnit((int) tmpIndex).add(start, end);
+        }
+        version++;
+        cachedCardinality = UNKNOWN;
+        prefixCardinalities = null;
+        expandBounds(rangeStart, rangeEnd - 1);
+        mutated(1);
     }
 
 
     @Override
-    public T not() {
-        List<U> notUnits = new ArrayList<>(this.unitsLength());
-        for (U unit : units) {
-            append(notUnits, unit.not());
+    public void remove(final long rangeStart, final long rangeEnd) {
+        if (rangeStart >= rangeEnd) {
+            return;
         }
-        return combine(notUnits);
+        checkOffset(rangeEnd - 1);
+
+        int minIndex = (int) (Math.max(0, rangeStart) >>> unitBits);
+        int maxIndex = (int) ((rangeEnd - 1) >>> unitBits);
+        int from = units.indexOf(minIndex);
+        for (int i = from < 0 ? -from - 1 : from; i < unitsLength(); i++) {
+            int tmpIndex = units.keyAt(i);
+            if (tmpIndex > maxIndex) {
+                break;
+            }
+            long start = Math.max(0, rangeStart - unitBase(tmpIndex));
+            long end = Math.min(maxUnitSize(), rangeEnd - unitBase(tmpIndex));
+            writableUnitAt(units, i).remove(start, end);
+        }
+        invalidateCache();
+        mutated(1);
     }
 
 
     @Override
-    public T copy() {
-        return combine(copy0());
+    public boolean check(long offset) {
+        U unit = findUnit(offset >>> unitBits);
+        return unit != null && unit.check(offset & unitMask);
     }
 
 
+    /**
+     * 批量添加长整型值到当前bitmap中
+     * <p>
+     * 连续落在同一个unit bitmap上的值会被合并为一批，直接写入一个int数组后交给该unit bitmap处理，
+     * 不经过中间的long数组。写入前先检查全部值，有负数时抛出IllegalArgumentException，且不会写入任何值
+     *
+     * @param values 长整型值数组
+     * @param from   起始下标(包含)
+     * @param to     结束下标(不包含)
+     */
     @Override
-    public long first() {
-        for (int i = 0; i < unitsLength(); i++) {
-            long firstInUnit = getUnit(i).first();
-            if (firstInUnit != -1) {
-                return i * maxUnitSize() + firstInUnit;
+    public void addMany(final long[] values, final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            checkOffset(values[i]);
+        }
+        int i = from;
+        try {
+            while (i < to) {
+                long index = values[i] >>> unitBits;
+                int j = i + 1;
+                while (j < to && (values[j] >>> unitBits) == index) {
+                    j++;
+                }
+                U unit = getOrCreateUnit((int) index);
+                if (unitBits <= Integer.SIZE) {
+                    int[] unitValues = new int[j - i];
+                    for (int k = i; k < j; k++) {
+                        unitValues[k - i] = (int) (values[k] & unitMask);
+                    }
+                    unit.addMany(unitValues, 0, unitValues.length);
+                } else {
+                    long[] unitValues = new long[j - i];
+                    for (int k = i; k < j; k++) {
+                        unitValues[k - i] = values[k] & unitMask;
+                    }
+                    unit.addMany(unitValues, 0, unitValues.length);
+                }
+                i = j;
             }
+        } finally {
+            invalidateCache();
         }
-        return -1;
+        mutated(to - from);
     }
 
 
     @Override
-    public long last() {
-        for (int i = unitsLength() - 1; i >= 0; i--) {
-            long lastInUnit = getUnit(i).last();
-            if (lastInUnit != -1) {
-                return i * maxUnitSize() + lastInUnit;
+    public void checkMany(final long[] values, final boolean[] results) {
+        long index = -1;
+        U unit = null;
+        for (int i = 0; i < values.length; i++) {
+            long v = values[i];
+            if ((v >>> unitBits) != index) {
+                index = v >>> unitBits;
+                unit = findUnit(index);
             }
+            results[i] = unit != null && unit.check(v & unitMask);
         }
-        return -1;
     }
 
 
     @Override
-    public long size() {
-        if (units.isEmpty()) {
-            return 0;
+    public boolean containsAll(final long[] values) {
+        long index = -1;
+        U unit = null;
+        for (long v : values) {
+            if ((v >>> unitBits) != index) {
+                index = v >>> unitBits;
+                unit = findUnit(index);
+            }
+            if (unit == null || !unit.check(v & unitMask)) {
+                return false;
+            }
         }
-        return (unitsLength() - 1) * maxUnitSize() + getUnit(unitsLength() - 1).size();
+        return true;
     }
 
 
     @Override
-    public long cardinality() {
-        long c = 0L;
-        for (U u : units) {
-            c += u.cardinality();
-        }
-        return c;
+    public T and(T other) {
+        return compute(other, false, Operation.AND);
     }
 
 
     @Override
-    public boolean extend(long newSize) {
-        long index = (newSize - 1) / maxUnitSize();
-        while (unitsLength() <= index) {
-            appendNewUnit();
-        }
-        boolean extended = false;
-        for (int i = 0; i < unitsLength(); i++) {
-            if (getUnit(i).extend(newSize - i * maxUnitSize())) {
-                extended = true;
-            }
-        }
-        return extended;
+    public T or(T other) {
+        return compute(other, true, Operation.OR);
     }
 
 
     @Override
-    public void serialize(DataOutput out) throws IOException {
-        for (int i = 0; i < unitsLength(); i++) {
-            U u = getUnit(i);
-            u.serialize(out);
-            out.writeInt(i);
-        }
+    public T xor(T other) {
+        return compute(other, true, Operation.XOR);
     }
 
 
     @Override
-    public void deserialize(DataInput in) throws IOException {
-        boolean hasNext = true;
-        while (hasNext) {
-            U u = newUnit();
-            u.deserialize(in);
-            append(u);
-            int index = in.readInt();
-            hasNext = index > 0;
-        }
+    public T andNot(T another) {
+        return andNot0(another);
     }
 
 
     @Override
-    public void writeExternal(ObjectOutput out) throws IOException {
-        serialize(out);
+    public void andInPlace(T other) {
+        computeInPlace(other, false, Operation.AND);
     }
 
 
     @Override
-    public void readExternal(ObjectInput in) throws IOException {
-        deserialize(in);
+    public void orInPlace(T other) {
+        computeInPlace(other, true, Operation.OR);
     }
 
 
     @Override
-    public byte[] toBytes() throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        serialize(new DataOutputStream(bos));
-        return bos.toByteArray();
+    public void xorInPlace(T other) {
+        computeInPlace(other, true, Operation.XOR);
     }
 
 
     @Override
-    @SuppressWarnings("unchecked")
-    public T fromBytes(byte[] bytes) throws IOException {
-        deserialize(new DataInputStream(new ByteArrayInputStream(bytes)));
-        return (T) this;
+    public void andNotInPlace(T other) {
+        computeInPlace(other, true, Operation.AND_NOT);
     }
 
 
     @Override
-    @SuppressWarnings("unchecked")
-    public boolean equals(Object o) {
-        if (this == o) {
-            return true;
-        }
-        if (o == null || getClass() != o.getClass()) {
-            return false;
-        }
-        AbstractExtBitmap<T, U> that = (AbstractExtBitmap<T, U>) o;
-        return Objects.equals(units, that.units);
+    public long andCardinality(T other) {
+        return computeCardinality(other, Operation.AND);
     }
 
 
     @Override
-    public int hashCode() {
-        return Objects.hash(units);
+    public long orCardinality(T other) {
+        return computeCardinality(other, Operation.OR);
     }
 
 
     @Override
-    public LongIterator longIterator() {
-        return new LongIterator() {
-
-            private int index = 0;
-            private LongIterator itr;
+    public long xorCardinality(T other) {
+        return computeCardinality(other, Operation.XOR);
+    }
 
-            @Override
-            public boolean hasNext() {
-                while (true) {
-                    if (index >= units.size()) {
-                        return false;
-                    }
-                    if (itr == null) {
-                        itr = units.get(index).longIterator();
-                    }
-                    if (itr.hasNext()) {
-                        return true;
-                    } else {
-                        itr = null;
-                        index++;
-                    }
-                }
-            }
 
-            @Override
-            public long next() {
-                return itr.next() + index * maxUnitSize();
-            }
-        };
+    @Override
+    public long andNotCardinality(T other) {
+        return computeCardinality(other, Operation.AND_NOT);
     }
 
 
     @Override
-    public String toString() {
-        StringBuilder builder = new StringBuilder();
-        builder.append("[");
-        LongIterator itr = longIterator();
-        while (itr.hasNext()) {
-            if (builder.length() > 1) {
-                builder.append(",");
-            }
-            builder.append(itr.next());
-            if (builder.length() > 300 && itr.hasNext()) {
-                return builder.append("...]").toString();
+    public boolean intersects(T other) {
+        AbstractExtBitmap<T, U> o = other;
+        int i = 0;
+        int j = 0;
+        while (i < this.unitsLength() && j < o.unitsLength()) {
+            int k1 = this.units.keyAt(i);
+            int k2 = o.units.keyAt(j);
+            if (k1 == k2) {
+                if (this.units.unitAt(i++).intersects(o.units.unitAt(j++))) {
+                    return true;
+                }
+            } else if (k1 < k2) {
+                i++;
+            } else {
+                j++;
             }
         }
-        builder.append("]");
-        builder.insert(0, getClass().getSimpleName());
-        return builder.toString();
+        return false;
     }
 
 
-    private T andNot0(AbstractExtBitmap<T, U> other) {
-        int length = this.unitsLength();
-        List<U> andNotUnits = new ArrayList<>(length);
-        for (int i = 0; i < length; i++) {
-            if (i < other.unitsLength()) {
-                append(andNotUnits, this.getUnit(i).andNot(other.getUnit(i)));
-            } else {
-                append(andNotUnits, this.getUnit(i).copy());
+    @Override
+    public T not() {
+        int length = units.lastKey() + 1;
+        Object[] results = mapUnits(length, i -> {
+            U unit = units.get(i);
+            if (unit != null) {
+                return unit.not();
             }
+            U empty = newUnit();
+            empty.extend(maxUnitSize());
+            U result = empty.not();
+            releaseUnit(empty);
+            return result;
+        });
+        UnitArray<U> notUnits = new UnitArray<>(length);
+        for (int i = 0; i < length; i++) {
+            append(notUnits, i, cast(results[i]));
         }
-        return combine(andNotUnits);
+        return combine(notUnits);
     }
 
 
-    public T andWithIndex(int index, U unit) {
-        return computeWithIndex(index, false, unit, IBitmap::and);
+    /**
+     * 当前bitmap的修改计数。bitmap中的值或长度每发生一次变化，修改计数都会增加，
+     * 修改计数不变即可认为bitmap没有被修改过
+     *
+     * @return 修改计数
+     */
+    public long version() {
+        return version;
     }
 
 
-    public T orWithIndex(int index, U unit) {
-        return computeWithIndex(index, true, unit, IBitmap::or);
+    /**
+     * 创建当前bitmap的快照，开销为O(unit bitmap数量)。
+     * <p>
+     * 快照与当前bitmap共享全部unit bitmap，任何一方修改某个unit bitmap之前都会先复制该unit bitmap(copy-on-write)，
+     * 因此快照的开销只与此后被修改的unit bitmap数量相关，与bitmap的大小无关。
+     * 创建快照需要与写入操作互斥；创建完成后，当前bitmap上的写入不会修改快照中的数据，快照可以被其他线程无锁读取
+     *
+     * @return 当前bitmap的快照
+     */
+    public T snapshot() {
+        for (int i = 0; i < unitsLength(); i++) {
+            retainUnit(units.unitAt(i));
+        }
+        T snapshot = combine(units.share());
+        AbstractExtBitmap<T, U> s = snapshot;
+        s.cachedCardinality = this.cachedCardinality;
+        s.cachedFirst = this.cachedFirst;
+        s.cachedLast = this.cachedLast;
+        return snapshot;
     }
 
 
-    public T xorWithIndex(int index, U unit) {
-        return computeWithIndex(index, true, unit, IBitmap::xor);
+    @Override
+    public T copy() {
+        return combine(copy0());
     }
 
 
-    public T andNotWithIndex(int index, U unit) {
-        return computeWithIndex(index, false, unit, IBitmap::andNot);
+    @Override
+    public long first() {
+        if (cachedFirst == UNKNOWN) {
+            cachedFirst = scanFirst();
+        }
+        return cachedFirst;
     }
 
 
-    private T compute(int unitsLength, AbstractExtBitmap<T, U> o, BiFunction<U, U, U> func) {
-        List<U> resultUnits = new ArrayList<>(unitsLength);
-        for (int i = 0; i < unitsLength; i++) {
-            U b1 = i < this.unitsLength() ? this.getUnit(i).copy() : newUnit();
-            U b2 = i < o.unitsLength() ? o.getUnit(i).copy() : newUnit();
-            append(resultUnits, func.apply(b1, b2));
+    @Override
+    public long last() {
+        if (cachedLast == UNKNOWN) {
+            cachedLast = scanLast();
         }
-        return combine(resultUnits);
+        return cachedLast;
     }
 
 
-    /**
-     * 对指定index上的unit bitmap进行运算
-     *
-     * @param index      参与运算的unit bitmap所在的index
-     * @param needExtend 当指定的index超出当前unit bitmap集合的范围时，是否对其进行扩展
-     * @param unit       参与运算的另一个unit
-     * @param func       两个unit bitmap的运算
-     * @return 运算的结果
+    private long scanFirst() {
+        for (int i = 0; i < unitsLength(); i++) {
+            long firstInUnit = units.unitAt(i).first();
+            if (firstInUnit != -1) {
+                return unitBase(units.keyAt(i)) + firstInUnit;
+            }
+        }
+        return -1;
+    }
+
+
+    private long scanLast() {
+        for (int i = unitsLength() - 1; i >= 0; i--) {
+            long lastInUnit = units.unitAt(i).last();
+            if (lastInUnit != -1) {
+                return unitBase(units.keyAt(i)) + lastInUnit;
+            }
+        }
+        return -1;
+    }
+
+
+    @Override
+    public long size() {
+        if (units.isEmpty()) {
+            return 0;
+        }
+        return unitBase(units.lastKey()) + units.unitAt(unitsLength() - 1).size();
+    }
+
+
+    /**
+     * 全部unit bitmap的内存占用，加上unit bitmap目录的数组及对象开销
+     *
+     * @return 估计的内存字节数
+     */
+    @Override
+    public long getSizeInBytes() {
+        long bytes = OBJECT_OVERHEAD + (long) units.capacity() * (Integer.BYTES + REFERENCE_BYTES);
+        for (int i = 0; i < unitsLength(); i++) {
+            bytes += units.unitAt(i).getSizeInBytes();
+        }
+        return bytes;
+    }
+
+
+    @Override
+    public long cardinality() {
+        if (cachedCardinality == UNKNOWN) {
+            cachedCardinality = sumCardinality();
+        }
+        return cachedCardinality;
+    }
+
+
+    /**
+     * bitmap中小于等于x的值的数量。通过unit bitmap基数的前缀和定位，开销为O(log units)加上一次unit bitmap内的rank
+     *
+     * @param x 长整型值
+     * @return 小于等于x的值的数量
+     */
+    @Override
+    public long rank(long x) {
+        if (x < 0) {
+            return 0;
+        }
+        long index = x >>> unitBits;
+        if (index > Integer.MAX_VALUE) {
+            return cardinality();
+        }
+        long[] prefix = prefixCardinalities();
+        int pos = units.indexOf((int) index);
+        if (pos < 0) {
+            return prefix[-pos - 1];
+        }
+        return prefix[pos] + units.unitAt(pos).rank(x & unitMask);
+    }
+
+
+    /**
+     * 获取bitmap中第j个(从0开始)最小的值。在unit bitmap基数的前缀和上二分查找所在的unit bitmap，开销为O(log units)
+     *
+     * @param j 值的序号，范围为[0, cardinality())
+     * @return 第j个最小的值
+     */
+    @Override
+    public long select(long j) {
+        long[] prefix = prefixCardinalities();
+        int n = unitsLength();
+        if (j < 0 || j >= prefix[n]) {
+            throw new IllegalArgumentException("Select index:[" + j + "] is out of range [0, " + prefix[n] + ").");
+        }
+        int low = 0;
+        int high = n - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (prefix[mid] <= j) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return unitBase(units.keyAt(low)) + units.unitAt(low).select(j - prefix[low]);
+    }
+
+
+    @Override
+    public long rangeCardinality(long rangeStart, long rangeEndExclusive) {
+        if (rangeEndExclusive <= rangeStart) {
+            return 0;
+        }
+        long end = rank(rangeEndExclusive - 1);
+        return rangeStart <= 0 ? end : end - rank(rangeStart - 1);
+    }
+
+
+    private long[] prefixCardinalities() {
+        long[] prefix = prefixCardinalities;
+        if (prefix == null) {
+            int n = unitsLength();
+            prefix = new long[n + 1];
+            for (int i = 0; i < n; i++) {
+                prefix[i + 1] = prefix[i] + units.unitAt(i).cardinality();
+            }
+            prefixCardinalities = prefix;
+        }
+        return prefix;
+    }
+
+
+    private long sumCardinality() {
+        if (unitsLength() >= parallelThreshold) {
+            return IntStream.range(0, unitsLength()).parallel().mapToLong(i -> units.unitAt(i).cardinality()).sum();
+        }
+        long c = 0L;
+        for (int i = 0; i < unitsLength(); i++) {
+            c += units.unitAt(i).cardinality();
+        }
+        return c;
+    }
+
+
+    @Override
+    public boolean extend(long newSize) {
+        if (newSize <= 0) {
+            return false;
+        }
+        checkOffset(newSize - 1);
+        getOrCreateUnit((int) ((newSize - 1) >>> unitBits));
+        boolean extended = false;
+        for (int i = 0; i < unitsLength(); i++) {
+            long unitSize = Math.min(newSize - unitBase(units.keyAt(i)), maxUnitSize());
+            if (units.unitAt(i).size() < unitSize && writableUnitAt(units, i).extend(unitSize)) {
+                extended = true;
+            }
+        }
+        if (extended) {
+            version++;
+        }
+        return extended;
+    }
+
+
+    /**
+     * 对全部unit bitmap执行runOptimize。与快照共享的unit bitmap会被跳过，不会为了优化而复制
+     *
+     * @return 有unit bitmap发生变化时返回true
+     */
+    @Override
+    public boolean runOptimize() {
+        boolean changed = false;
+        for (int i = 0; i < unitsLength(); i++) {
+            if (!units.isShared(i)) {
+                changed |= units.unitAt(i).runOptimize();
+            }
+        }
+        return changed;
+    }
+
+
+    /**
+     * 释放全部unit bitmap多余的内存。与快照共享的unit bitmap会被跳过，不会为了释放内存而复制
+     */
+    @Override
+    public void trim() {
+        for (int i = 0; i < unitsLength(); i++) {
+            if (!units.isShared(i)) {
+                units.unitAt(i).trim();
+            }
+        }
+    }
+
+
+    /**
+     * 序列化后的字节数，包括格式头和单元索引表
+     *
+     * @return 序列化后的字节数
+     */
+    @Override
+    public long serializedSizeInBytes() {
+        long size = ExtBitmapHeader.FIXED_SIZE + (long) ExtBitmapHeader.ENTRY_SIZE * unitsLength();
+        for (int i = 0; i < unitsLength(); i++) {
+            size += units.unitAt(i).serializedSizeInBytes();
+        }
+        return size;
+    }
+
+
+    /**
+     * 序列化当前bitmap到输出流
+     * <p>
+     * 先写出格式头及单元索引表，再依次写出各单元的数据，格式见{@link ExtBitmapHeader}
+     *
+     * @param out 输出流
+     * @throws IOException
+     */
+    @Override
+    public void serialize(DataOutput out) throws IOException {
+        header().write(out);
+        for (int i = 0; i < unitsLength(); i++) {
+            units.unitAt(i).serialize(out);
+        }
+    }
+
+
+    /**
+     * 从输入流中反序列化到当前bitmap
+     * <p>
+     * 同时支持读取旧版本格式的数据，没有格式头的旧版数据中的值会按照当前的单元容量重新分布。
+     * 输入的数据与单元索引表不一致时会抛出IOException，输入为空或不足以读出格式头时同样抛出IOException
+     *
+     * @param in 输入流
+     * @throws IOException
+     */
+    @Override
+    public void deserialize(DataInput in) throws IOException {
+        invalidateCache();
+        int cookie;
+        try {
+            cookie = in.readInt();
+        } catch (EOFException e) {
+            throw new IOException("Serialized data is empty or truncated.", e);
+        }
+        if (cookie != ExtBitmapHeader.SERIAL_COOKIE) {
+            deserializeLegacy(new SequenceInputStream(
+                    new ByteArrayInputStream(toBytes(cookie)), new DataInputStreamAdapter(in)));
+            return;
+        }
+        byte serialVersion = in.readByte();
+        if (serialVersion != ExtBitmapHeader.SERIAL_VERSION_2) {
+            throw new IOException("Unsupported serial version:[" + serialVersion + "].");
+        }
+        ExtBitmapHeader header = ExtBitmapHeader.readAfterVersion(in);
+        checkUnitBits(header.unitBits());
+        for (int i = 0; i < header.unitCount(); i++) {
+            append(units, header.keyAt(i), readUnit(header, i, new BoundedDataInput(in, header.lengthAt(i))));
+        }
+    }
+
+
+    /**
+     * 从序列化数据中直接读取指定index上的unit bitmap，不会解析其他unit bitmap
+     *
+     * @param bytes  序列化数据
+     * @param header 序列化数据的格式头，见{@link ExtBitmapHeader#read(java.nio.ByteBuffer)}
+     * @param index  unit bitmap的index
+     * @return unit bitmap，不存在时返回null
+     * @throws IOException
+     */
+    public U deserializeUnit(byte[] bytes, ExtBitmapHeader header, int index) throws IOException {
+        checkUnitBits(header.unitBits());
+        int pos = header.indexOf(index);
+        if (pos < 0) {
+            return null;
+        }
+        long offset = header.headerSize() + header.offsetAt(pos);
+        if (offset + header.lengthAt(pos) > bytes.length) {
+            throw new IOException("Serialized data is truncated.");
+        }
+        return readUnit(header, pos, bytes, (int) offset);
+    }
+
+
+    /**
+     * 生成当前bitmap的格式头
+     *
+     * @return 格式头
+     */
+    private ExtBitmapHeader header() {
+        int n = unitsLength();
+        int[] keys = new int[n];
+        long[] offsets = new long[n];
+        int[] lengths = new int[n];
+        long[] cardinalities = new long[n];
+        long offset = 0L;
+        for (int i = 0; i < n; i++) {
+            U u = units.unitAt(i);
+            long length = u.serializedSizeInBytes();
+            if (length > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Serialized size of unit:[" + units.keyAt(i) + "] is too large.");
+            }
+            keys[i] = units.keyAt(i);
+            offsets[i] = offset;
+            lengths[i] = (int) length;
+            cardinalities[i] = u.cardinality();
+            offset += length;
+        }
+        return new ExtBitmapHeader(unitBits, keys, offsets, lengths, cardinalities);
+    }
+
+
+    /**
+     * 从字节数组中读取索引表中第pos项对应的unit bitmap，并校验数据长度和基数
+     */
+    private U readUnit(ExtBitmapHeader header, int pos, byte[] bytes, int offset) throws IOException {
+        ByteArrayInputStream bis = new ByteArrayInputStream(bytes, offset, header.lengthAt(pos));
+        return readUnit(header, pos, new BoundedDataInput(new DataInputStream(bis), header.lengthAt(pos)));
+    }
+
+
+    /**
+     * 从输入流中直接读取索引表中第pos项对应的unit bitmap，并校验数据长度和基数
+     */
+    private U readUnit(ExtBitmapHeader header, int pos, BoundedDataInput in) throws IOException {
+        U u = newUnit();
+        boolean valid = false;
+        try {
+            u.deserialize(in);
+            if (in.remaining() != 0 || u.cardinality() != header.cardinalityAt(pos)) {
+                throw new IOException("Data of unit:[" + header.keyAt(pos) + "] does not match the unit index table.");
+            }
+            valid = true;
+        } catch (EOFException e) {
+            throw new IOException("Data of unit:[" + header.keyAt(pos) + "] is truncated.", e);
+        } finally {
+            if (!valid) {
+                releaseUnit(u);
+            }
+        }
+        return u;
+    }
+
+
+    private void checkUnitBits(int bits) throws IOException {
+        if (bits != unitBits) {
+            throw new IOException("Unit bits of serialized data:[" + bits + "] does not match:[" + unitBits + "].");
+        }
+    }
+
+
+    /**
+     * 读取旧版格式的数据：依次为单元数据及其index(int)，直到输入流结束。
+     * 输入流只能在两个单元之间结束，单元数据不完整时抛出IOException
+     *
+     * @param stream 输入流
+     * @throws IOException
+     */
+    private void deserializeLegacy(InputStream stream) throws IOException {
+        PushbackInputStream pin = new PushbackInputStream(stream);
+        DataInputStream in = new DataInputStream(pin);
+        long legacySize = legacyMaxUnitSize();
+        while (true) {
+            int b = pin.read();
+            if (b < 0) {
+                break;
+            }
+            pin.unread(b);
+            U u = newUnit();
+            try {
+                int index;
+                try {
+                    u.deserialize(in);
+                    index = in.readInt();
+                } catch (EOFException e) {
+                    throw new IOException("Legacy serialized data is truncated.", e);
+                }
+                checkIndex(index);
+                long base = index * legacySize;
+                LongIterator itr = u.longIterator();
+                while (itr.hasNext()) {
+                    add(base + itr.next());
+                }
+            } finally {
+                releaseUnit(u);
+            }
+        }
+    }
+
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        serialize(out);
+    }
+
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        deserialize(in);
+    }
+
+
+    @Override
+    public byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(initialCapacity(serializedSizeInBytes()));
+        serialize(new DataOutputStream(bos));
+        return bos.toByteArray();
+    }
+
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T fromBytes(byte[] bytes) throws IOException {
+        deserialize(new DataInputStream(new ByteArrayInputStream(bytes)));
+        return (T) this;
+    }
+
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        AbstractExtBitmap<T, U> that = (AbstractExtBitmap<T, U>) o;
+        return Objects.equals(units, that.units);
+    }
+
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(units);
+    }
+
+
+    @Override
+    public LongIterator longIterator() {
+        return peekableLongIterator();
+    }
+
+
+    /**
+     * 可以查看下一个值并跳过较小值的iterator。
+     * <p>
+     * {@link PeekableLongIterator#advanceIfNeeded(long)}先在unit bitmap目录中二分查找目标所在的unit bitmap，
+     * 直接跳过中间的全部unit bitmap，再由unit bitmap的iterator在其内部跳过较小的值
+     *
+     * @return bitmap元素iterator
+     */
+    @Override
+    public PeekableLongIterator peekableLongIterator() {
+        return new PeekableLongIterator() {
+
+            private int pos = -1;
+            private long base;
+            private PeekableLongIterator itr;
+
+            @Override
+            public boolean hasNext() {
+                while (itr == null || !itr.hasNext()) {
+                    if (pos + 1 >= units.size()) {
+                        pos = units.size();
+                        itr = null;
+                        return false;
+                    }
+                    moveTo(pos + 1);
+                }
+                return true;
+            }
+
+            @Override
+            public long next() {
+                return base + itr.next();
+            }
+
+            @Override
+            public long peekNext() {
+                return base + itr.peekNext();
+            }
+
+            @Override
+            public void advanceIfNeeded(long minVal) {
+                if (minVal < 0 || pos >= units.size()) {
+                    return;
+                }
+                long index = minVal >>> unitBits;
+                if (pos >= 0 && units.keyAt(pos) > index) {
+                    return;
+                }
+                if (pos < 0 || units.keyAt(pos) < index) {
+                    int p = index > Integer.MAX_VALUE ? units.size() : units.indexOf((int) index);
+                    p = p < 0 ? -p - 1 : p;
+                    if (p >= units.size()) {
+                        pos = units.size();
+                        itr = null;
+                        return;
+                    }
+                    moveTo(p);
+                }
+                if (units.keyAt(pos) == index) {
+                    itr.advanceIfNeeded(minVal & unitMask);
+                }
+            }
+
+            private void moveTo(int p) {
+                pos = p;
+                base = unitBase(units.keyAt(p));
+                itr = units.unitAt(p).peekableLongIterator();
+            }
+        };
+    }
+
+
+    /**
+     * 批量读取bitmap元素的iterator。
+     * <p>
+     * 由unit bitmap的批量iterator将unit内的值写入buffer，再在一个简单循环中统一加上unit的基准值
+     *
+     * @return 批量iterator
+     */
+    @Override
+    public LongBatchIterator batchIterator() {
+        return new LongBatchIterator() {
+
+            private int pos = -1;
+            private long base;
+            private LongBatchIterator itr;
+
+            @Override
+            public boolean hasNext() {
+                while (itr == null || !itr.hasNext()) {
+                    if (pos + 1 >= units.size()) {
+                        pos = units.size();
+                        itr = null;
+                        return false;
+                    }
+                    pos++;
+                    base = unitBase(units.keyAt(pos));
+                    itr = units.unitAt(pos).batchIterator();
+                }
+                return true;
+            }
+
+            @Override
+            public int nextBatch(long[] buffer, int offset, int length) {
+                int n = 0;
+                while (n < length && hasNext()) {
+                    int from = offset + n;
+                    int count = itr.nextBatch(buffer, from, length - n);
+                    long b = base;
+                    for (int i = from; i < from + count; i++) {
+                        buffer[i] += b;
+                    }
+                    n += count;
+                }
+                return n;
+            }
+        };
+    }
+
+
+    @Override
+    public void forEach(LongConsumer action) {
+        for (int i = 0; i < units.size(); i++) {
+            long base = unitBase(units.keyAt(i));
+            units.unitAt(i).forEach(v -> action.accept(base + v));
+        }
+    }
+
+
+    /**
+     * bitmap元素的Spliterator。
+     * <p>
+     * 创建时即计算并缓存各unit bitmap的基数及其前缀和，并行拆分时只读取bitmap
+     *
+     * @return bitmap元素的Spliterator
+     */
+    @Override
+    public Spliterator.OfLong spliterator() {
+        prefixCardinalities();
+        return IBitmap.super.spliterator();
+    }
+
+
+    @Override
+    public LongIterator reverseLongIterator() {
+        return new LongIterator() {
+
+            private int pos = units.size();
+            private long base;
+            private LongIterator itr;
+
+            @Override
+            public boolean hasNext() {
+                while (itr == null || !itr.hasNext()) {
+                    if (pos <= 0) {
+                        itr = null;
+                        return false;
+                    }
+                    pos--;
+                    base = unitBase(units.keyAt(pos));
+                    itr = units.unitAt(pos).reverseLongIterator();
+                }
+                return true;
+            }
+
+            @Override
+            public long next() {
+                return base + itr.next();
+            }
+        };
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("[");
+        LongIterator itr = longIterator();
+        while (itr.hasNext()) {
+            if (builder.length() > 1) {
+                builder.append(",");
+            }
+            builder.append(itr.next());
+            if (builder.length() > 300 && itr.hasNext()) {
+                return builder.append("...]").toString();
+            }
+        }
+        builder.append("]");
+        builder.insert(0, getClass().getSimpleName());
+        return builder.toString();
+    }
+
+
+    private T andNot0(AbstractExtBitmap<T, U> other) {
+        int length = this.unitsLength();
+        Object[] results = mapUnits(length, i -> {
+            U otherUnit = other.units.get(this.units.keyAt(i));
+            return otherUnit != null ? this.units.unitAt(i).andNot(otherUnit) : this.units.unitAt(i).copy();
+        });
+        UnitArray<U> andNotUnits = new UnitArray<>(length);
+        for (int i = 0; i < length; i++) {
+            appendIfNotEmpty(andNotUnits, this.units.keyAt(i), cast(results[i]));
+        }
+        return combine(andNotUnits);
+    }
+
+
+    public T andWithIndex(int index, U unit) {
+        return computeWithIndex(index, false, unit, Operation.AND);
+    }
+
+
+    public T orWithIndex(int index, U unit) {
+        return computeWithIndex(index, true, unit, Operation.OR);
+    }
+
+
+    public T xorWithIndex(int index, U unit) {
+        return computeWithIndex(index, true, unit, Operation.XOR);
+    }
+
+
+    public T andNotWithIndex(int index, U unit) {
+        return computeWithIndex(index, false, unit, Operation.AND_NOT);
+    }
+
+
+    /**
+     * 对两个bitmap中相同index的unit bitmap逐一进行运算
+     *
+     * @param o         参与运算的另一个bitmap
+     * @param union     为true时对两个bitmap的全部unit进行运算，缺失的一方视为空unit；为false时只计算双方都存在的unit
+     * @param operation 两个unit bitmap的运算
+     * @return 运算的结果
+     */
+    private T compute(AbstractExtBitmap<T, U> o, boolean union, Operation operation) {
+        int capacity = union
+                ? this.unitsLength() + o.unitsLength()
+                : Math.min(this.unitsLength(), o.unitsLength());
+        int[] keys = new int[capacity];
+        Object[] lefts = new Object[capacity];
+        Object[] rights = new Object[capacity];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < this.unitsLength() && j < o.unitsLength()) {
+            int k1 = this.units.keyAt(i);
+            int k2 = o.units.keyAt(j);
+            if (k1 == k2) {
+                keys[n] = k1;
+                lefts[n] = this.units.unitAt(i++);
+                rights[n++] = o.units.unitAt(j++);
+            } else if (k1 < k2) {
+                if (union) {
+                    keys[n] = k1;
+                    lefts[n++] = this.units.unitAt(i);
+                }
+                i++;
+            } else {
+                if (union) {
+                    keys[n] = k2;
+                    rights[n++] = o.units.unitAt(j);
+                }
+                j++;
+            }
+        }
+        while (union && i < this.unitsLength()) {
+            keys[n] = this.units.keyAt(i);
+            lefts[n++] = this.units.unitAt(i++);
+        }
+        while (union && j < o.unitsLength()) {
+            keys[n] = o.units.keyAt(j);
+            rights[n++] = o.units.unitAt(j++);
+        }
+
+        Object[] results = mapUnits(n, p -> {
+            U left = lefts[p] == null ? newUnit() : cast(lefts[p]);
+            U right = rights[p] == null ? newUnit() : cast(rights[p]);
+            U result = operation.apply(left, right);
+            if (lefts[p] == null) {
+                releaseUnit(left);
+            }
+            if (rights[p] == null) {
+                releaseUnit(right);
+            }
+            return result;
+        });
+        UnitArray<U> resultUnits = new UnitArray<>(n);
+        for (int p = 0; p < n; p++) {
+            appendIfNotEmpty(resultUnits, keys[p], cast(results[p]));
+        }
+        return combine(resultUnits);
+    }
+
+
+    /**
+     * 计算两个bitmap运算后结果的基数，逐一计算相同index的unit bitmap，不会生成运算结果
+     *
+     * @param o         参与运算的另一个bitmap
+     * @param operation 两个unit bitmap的运算
+     * @return 运算结果的基数
+     */
+    private long computeCardinality(AbstractExtBitmap<T, U> o, Operation operation) {
+        boolean keepLeft = operation != Operation.AND;
+        boolean keepRight = operation == Operation.OR || operation == Operation.XOR;
+        long c = 0L;
+        int i = 0;
+        int j = 0;
+        while (i < this.unitsLength() && j < o.unitsLength()) {
+            int k1 = this.units.keyAt(i);
+            int k2 = o.units.keyAt(j);
+            if (k1 == k2) {
+                c += operation.cardinality(this.units.unitAt(i++), o.units.unitAt(j++));
+            } else if (k1 < k2) {
+                if (keepLeft) {
+                    c += this.units.unitAt(i).cardinality();
+                }
+                i++;
+            } else {
+                if (keepRight) {
+                    c += o.units.unitAt(j).cardinality();
+                }
+                j++;
+            }
+        }
+        while (keepLeft && i < this.unitsLength()) {
+            c += this.units.unitAt(i++).cardinality();
+        }
+        while (keepRight && j < o.unitsLength()) {
+            c += o.units.unitAt(j++).cardinality();
+        }
+        return c;
+    }
+
+
+    /**
+     * 对两个bitmap中相同index的unit bitmap逐一进行运算，结果直接写入当前bitmap的unit bitmap
+     * <p>
+     * 双方都存在的unit bitmap直接在当前unit bitmap上运算，不会复制另一个bitmap的unit bitmap；
+     * 只有当前bitmap缺失而运算结果需要保留的unit bitmap才会被复制
+     *
+     * @param o         参与运算的另一个bitmap，不会被修改
+     * @param union     为true时保留只在一方存在的unit；为false时只保留双方都存在的unit
+     * @param operation 两个unit bitmap的运算
+     */
+    private void computeInPlace(AbstractExtBitmap<T, U> o, boolean union, Operation operation) {
+        UnitArray<U> resultUnits = new UnitArray<>(union
+                ? this.unitsLength() + o.unitsLength()
+                : Math.min(this.unitsLength(), o.unitsLength()));
+        boolean keepRight = operation != Operation.AND_NOT;
+        int i = 0;
+        int j = 0;
+        while (i < this.unitsLength() && j < o.unitsLength()) {
+            int k1 = this.units.keyAt(i);
+            int k2 = o.units.keyAt(j);
+            if (k1 == k2) {
+                U unit = writableUnitAt(this.units, i++);
+                operation.applyInPlace(unit, o.units.unitAt(j++));
+                appendIfNotEmpty(resultUnits, k1, unit);
+            } else if (k1 < k2) {
+                if (union) {
+                    moveUnit(resultUnits, i);
+                } else {
+                    dropUnit(i);
+                }
+                i++;
+            } else {
+                if (union && keepRight) {
+                    append(resultUnits, k2, o.units.unitAt(j).copy());
+                }
+                j++;
+            }
+        }
+        while (i < this.unitsLength()) {
+            if (union) {
+                moveUnit(resultUnits, i++);
+            } else {
+                dropUnit(i++);
+            }
+        }
+        while (union && keepRight && j < o.unitsLength()) {
+            append(resultUnits, o.units.keyAt(j), o.units.unitAt(j++).copy());
+        }
+        units.assign(resultUnits);
+        invalidateCache();
+    }
+
+
+    /**
+     * 对指定index上的unit bitmap进行运算
+     *
+     * @param index      参与运算的unit bitmap所在的index
+     * @param needExtend 当指定的index超出当前unit bitmap集合的范围时，是否对其进行扩展
+     * @param unit       参与运算的另一个unit
+     * @param operation  两个unit bitmap的运算
+     * @return 运算的结果
      */
-    private T computeWithIndex(int index, boolean needExtend, U unit, BiFunction<U, U, U> func) {
+    private T computeWithIndex(int index, boolean needExtend, U unit, Operation operation) {
         checkIndex(index);
-        if (this.unitsLength() < index + 1 && !needExtend) {
+        if (units.get(index) == null && !needExtend) {
             return copy();
         }
-        List<U> list = copy0();
-        while (list.size() < index + 1) {
-            append(list, newUnit());
-        }
+        UnitArray<U> list = copy0();
         U childUnit = list.get(index);
-        list.set(index, func.apply(childUnit, unit));
+        if (childUnit != null) {
+            append(list, index, operation.apply(childUnit, unit));
+        } else {
+            U empty = newUnit();
+            append(list, index, operation.apply(empty, unit));
+            releaseUnit(empty);
+        }
         return combine(list);
     }
 
 
-    private List<U> copy0() {
-        List<U> copyUnits = new ArrayList<>(this.unitsLength());
-        for (U unit : units) {
-            append(copyUnits, unit.copy());
+    private UnitArray<U> copy0() {
+        Object[] results = mapUnits(unitsLength(), i -> units.unitAt(i).copy());
+        UnitArray<U> copyUnits = new UnitArray<>(this.unitsLength());
+        for (int i = 0; i < unitsLength(); i++) {
+            append(copyUnits, units.keyAt(i), cast(results[i]));
         }
         return copyUnits;
     }
 
-    private U getUnit(int index) {
-        return units.get(index);
+
+    /**
+     * 对[0, length)中的每个位置执行运算并按位置保存结果
+     * <p>
+     * length达到{@link #getParallelThreshold()}时通过ForkJoin并行执行，否则在当前线程中顺序执行。
+     * 两种方式的结果完全相同
+     *
+     * @param length 位置的数量
+     * @param mapper 每个位置上的运算，并行执行时会被多个线程同时调用
+     * @return 按位置保存的运算结果
+     */
+    private Object[] mapUnits(int length, IntFunction<U> mapper) {
+        Object[] results = new Object[length];
+        if (length >= parallelThreshold) {
+            IntStream.range(0, length).parallel().forEach(i -> results[i] = mapper.apply(i));
+        } else {
+            for (int i = 0; i < length; i++) {
+                results[i] = mapper.apply(i);
+            }
+        }
+        return results;
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private U cast(Object unit) {
+        return (U) unit;
+    }
+
+
+    /**
+     * 设置并行运算的阈值：unit bitmap数量达到该值时，逐unit的运算(and、or、xor、andNot、not、cardinality、copy)
+     * 改为通过ForkJoin并行执行
+     *
+     * @param threshold 并行运算的阈值，设置为Integer.MAX_VALUE时总是顺序执行
+     */
+    public static void setParallelThreshold(int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Parallel threshold must be greater than zero. Your threshold is " + threshold);
+        }
+        parallelThreshold = threshold;
+    }
+
+
+    /**
+     * 获取并行运算的阈值
+     *
+     * @return 并行运算的阈值
+     */
+    public static int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+
+    /**
+     * 加入了[min, max]范围内的值后，更新缓存的第一个值及最后一个值
+     */
+    private void expandBounds(long min, long max) {
+        if (cachedFirst != UNKNOWN) {
+            cachedFirst = cachedFirst < 0 ? min : Math.min(cachedFirst, min);
+        }
+        if (cachedLast != UNKNOWN) {
+            cachedLast = Math.max(cachedLast, max);
+        }
+    }
+
+
+    /**
+     * 清除缓存的基数、第一个值及最后一个值
+     */
+    private void invalidateCache() {
+        version++;
+        prefixCardinalities = null;
+        cachedCardinality = UNKNOWN;
+        cachedFirst = UNKNOWN;
+        cachedLast = UNKNOWN;
+    }
+
+
+    /**
+     * 记录修改次数，达到自动优化阈值时执行runOptimize
+     *
+     * @param count 本次修改的次数
+     */
+    private void mutated(long count) {
+        if (autoOptimizeThreshold > 0 && (mutations += count) >= autoOptimizeThreshold) {
+            mutations = 0;
+            runOptimize();
+        }
+    }
+
+
+    /**
+     * 获取指定index上的unit bitmap
+     *
+     * @param index unit bitmap所在的index
+     * @return unit bitmap，不存在时返回null
+     */
+    private U findUnit(long index) {
+        if (index > Integer.MAX_VALUE) {
+            return null;
+        }
+        return units.get((int) index);
+    }
+
+
+    /**
+     * 指定index上的unit bitmap的第一个值对应的长整型值
+     *
+     * @param index unit bitmap所在的index
+     * @return unit bitmap的起始位置
+     */
+    private long unitBase(int index) {
+        return ((long) index) << unitBits;
+    }
+
+
+    /**
+     * 获取指定index上的unit bitmap，不存在时创建新的unit bitmap
+     *
+     * @param index unit bitmap所在的index
+     * @return unit bitmap
+     */
+    private U getOrCreateUnit(int index) {
+        int pos = units.indexOf(index);
+        if (pos >= 0) {
+            return writableUnitAt(units, pos);
+        }
+        U unit = newUnit();
+        append(units, index, unit);
+        prefixCardinalities = null;
+        return unit;
+    }
+
+
+    /**
+     * 获取目录中指定位置上可以修改的unit bitmap。unit bitmap与快照共享时先复制一份替换原来的unit bitmap
+     *
+     * @param array unit bitmap目录
+     * @param pos   unit bitmap在目录中的位置
+     * @return 可以修改的unit bitmap
+     */
+    private U writableUnitAt(UnitArray<U> array, int pos) {
+        U unit = array.unitAt(pos);
+        if (array.isShared(pos)) {
+            U shared = unit;
+            unit = shared.copy();
+            array.setUnitAt(pos, unit);
+            releaseUnit(shared);
+        }
+        return unit;
+    }
+
+
+    /**
+     * 将当前bitmap中指定位置上的unit bitmap不经修改地追加到另一个目录中，保留其共享标记
+     *
+     * @param target 目标目录
+     * @param pos    unit bitmap在当前目录中的位置
+     */
+    private void moveUnit(UnitArray<U> target, int pos) {
+        append(target, units.keyAt(pos), units.unitAt(pos));
+        if (units.isShared(pos)) {
+            target.markShared(target.indexOf(units.keyAt(pos)));
+        }
+    }
+
+
+    /**
+     * 当前bitmap中指定位置上的unit bitmap不会出现在运算结果中，释放该unit bitmap
+     *
+     * @param pos unit bitmap在当前目录中的位置
+     */
+    private void dropUnit(int pos) {
+        releaseUnit(units.unitAt(pos));
     }
 
 
     private void checkOffset(long offset) {
-        if (offset >= maxUnitSize() * Integer.MAX_VALUE) {
-            throw new IllegalArgumentException(String.format("Offset must be less than (%d * Integer.MAX_VALUE). Your offset is %d.", maxUnitSize(), offset));
+        if (offset < 0 || (offset >>> unitBits) > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("Offset must be in range [0, %d * 2^31). Your offset is %d.", maxUnitSize(), offset));
         }
     }
 
@@ -446,28 +1609,175 @@ public abstract class AbstractExtBitmap<T extends AbstractExtBitmap<T, U>, U ext
     }
 
 
-    private void appendNewUnit() {
-        append(newUnit());
+    /**
+     * 将unit bitmap放置到指定index上，已存在的unit bitmap会被替换
+     * <p>
+     * 除最后一个unit bitmap外，其余unit bitmap的size总是等于单元的最大容量。
+     * 追加新的最后一个unit bitmap时只需扩展原来的最后一个，每次追加的开销为O(1)
+     *
+     * @param bitmaps unit bitmap目录
+     * @param index   unit bitmap所在的index
+     * @param bitmap  unit bitmap
+     */
+    private void append(UnitArray<U> bitmaps, int index, U bitmap) {
+        int pos = bitmaps.indexOf(index);
+        if (pos >= 0) {
+            if (pos < bitmaps.size() - 1) {
+                bitmap.extend(maxUnitSize());
+            }
+            U replaced = bitmaps.unitAt(pos);
+            bitmaps.setUnitAt(pos, bitmap);
+            if (replaced != bitmap) {
+                releaseUnit(replaced);
+            }
+            return;
+        }
+        pos = -pos - 1;
+        if (pos < bitmaps.size()) {
+            bitmap.extend(maxUnitSize());
+        } else if (pos > 0 && bitmaps.unitAt(pos - 1).size() < maxUnitSize()) {
+            writableUnitAt(bitmaps, pos - 1).extend(maxUnitSize());
+        }
+        bitmaps.insertAt(pos, index, bitmap);
+    }
+
+
+    /**
+     * 将运算结果中的unit bitmap放置到指定index上，空的unit bitmap直接释放，使结果的目录中只保存有值的unit bitmap
+     *
+     * @param bitmaps unit bitmap目录
+     * @param index   unit bitmap所在的index
+     * @param bitmap  运算结果中的unit bitmap
+     */
+    private void appendIfNotEmpty(UnitArray<U> bitmaps, int index, U bitmap) {
+        if (bitmap.first() < 0) {
+            releaseUnit(bitmap);
+        } else {
+            append(bitmaps, index, bitmap);
+        }
     }
 
 
-    private void append(U bitmap) {
-        append(units, bitmap);
+    /**
+     * 当前bitmap的unit bitmap目录
+     *
+     * @return unit bitmap目录
+     */
+    UnitArray<U> units() {
+        return units;
     }
 
 
-    private void append(List<U> bitmaps, U bitmap) {
-        int i = bitmaps.size() - 1;
-        while (i >= 0) {
-            bitmaps.get(i).extend(maxUnitSize());
-            i--;
-        }
-        bitmaps.add(bitmap);
+    /**
+     * 将unit bitmap放置到当前bitmap指定的index上
+     *
+     * @param index unit bitmap所在的index
+     * @param unit  unit bitmap
+     */
+    void putUnit(int index, U unit) {
+        checkIndex(index);
+        append(units, index, unit);
+        invalidateCache();
     }
 
 
+    /**
+     * 实际存在的unit bitmap的数量
+     *
+     * @return unit bitmap的数量
+     */
     protected int unitsLength() {
         return units.size();
     }
 
+
+    /**
+     * unit bitmap之间的运算。使用枚举代替lambda，避免运算过程中的对象创建
+     */
+    private enum Operation {
+
+        AND, OR, XOR, AND_NOT;
+
+        <U extends IBitmap<U>> U apply(U u1, U u2) {
+            switch (this) {
+                case AND:
+                    return u1.and(u2);
+                case OR:
+                    return u1.or(u2);
+                case XOR:
+                    return u1.xor(u2);
+                case AND_NOT:
+                    return u1.andNot(u2);
+                default:
+                    throw new IllegalStateException("Unknown operation: " + this);
+            }
+        }
+
+        <U extends IBitmap<U>> long cardinality(U u1, U u2) {
+            switch (this) {
+                case AND:
+                    return u1.andCardinality(u2);
+                case OR:
+                    return u1.orCardinality(u2);
+                case XOR:
+                    return u1.xorCardinality(u2);
+                case AND_NOT:
+                    return u1.andNotCardinality(u2);
+                default:
+                    throw new IllegalStateException("Unknown operation: " + this);
+            }
+        }
+
+        <U extends IBitmap<U>> void applyInPlace(U u1, U u2) {
+            switch (this) {
+                case AND:
+                    u1.andInPlace(u2);
+                    break;
+                case OR:
+                    u1.orInPlace(u2);
+                    break;
+                case XOR:
+                    u1.xorInPlace(u2);
+                    break;
+                case AND_NOT:
+                    u1.andNotInPlace(u2);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown operation: " + this);
+            }
+        }
+    }
+
+
+    private static int initialCapacity(long serializedSize) {
+        return (int) Math.min(serializedSize, Integer.MAX_VALUE - 8);
+    }
+
+
+    private static byte[] toBytes(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+
+    /**
+     * 将{@link DataInput}适配为{@link InputStream}
+     */
+    private static final class DataInputStreamAdapter extends InputStream {
+
+        private final DataInput in;
+
+        private DataInputStreamAdapter(DataInput in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return in.readUnsignedByte();
+            } catch (EOFException e) {
+                return -1;
+            }
+        }
+    }
+
 }
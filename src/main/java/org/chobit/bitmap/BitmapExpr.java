@@ -0,0 +1,538 @@
+package org.chobit.bitmap;
+
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * ExtRoaringBitmap上的惰性布尔表达式，如：
+ * <pre>
+ *     BitmapExpr.allOf(BitmapExpr.of(a), BitmapExpr.anyOf(b, c)).andNot(d).evaluate();
+ * </pre>
+ * 构建表达式时不做任何计算。求值时先生成执行计划：展开嵌套的and/or，and的操作数按基数升序排列；
+ * 再逐个unit bitmap计算整棵表达式树，任一and操作数在该unit上为空即跳过其余操作数。
+ * 同一时刻只存在一个unit bitmap的中间结果，不会为每个节点生成完整的中间bitmap。
+ * <p>
+ * 表达式只保存对操作数的引用，求值时读取操作数当前的值，求值期间操作数不能被修改
+ *
+ * @author robin
+ */
+public abstract class BitmapExpr {
+
+
+    private BitmapExpr() {
+    }
+
+
+    /**
+     * 以bitmap作为表达式的操作数
+     *
+     * @param bitmap bitmap
+     * @return 表达式
+     */
+    public static BitmapExpr of(ExtRoaringBitmap bitmap) {
+        if (bitmap == null) {
+            throw new IllegalArgumentException("Bitmap operand must not be null.");
+        }
+        return new Leaf(bitmap);
+    }
+
+
+    /**
+     * 多个表达式的and运算。bitmap与表达式混合作为操作数时，bitmap先通过{@link #of(ExtRoaringBitmap)}转换为表达式
+     *
+     * @param operands 参与运算的表达式
+     * @return 表达式
+     */
+    public static BitmapExpr allOf(BitmapExpr... operands) {
+        return new And(operands(operands));
+    }
+
+
+    /**
+     * 多个bitmap的and运算
+     *
+     * @param operands 参与运算的bitmap
+     * @return 表达式
+     */
+    public static BitmapExpr allOf(ExtRoaringBitmap... operands) {
+        return allOf(leaves(operands));
+    }
+
+
+    /**
+     * 多个表达式的or运算。bitmap与表达式混合作为操作数时，bitmap先通过{@link #of(ExtRoaringBitmap)}转换为表达式
+     *
+     * @param operands 参与运算的表达式
+     * @return 表达式
+     */
+    public static BitmapExpr anyOf(BitmapExpr... operands) {
+        return new Or(operands(operands));
+    }
+
+
+    /**
+     * 多个bitmap的or运算
+     *
+     * @param operands 参与运算的bitmap
+     * @return 表达式
+     */
+    public static BitmapExpr anyOf(ExtRoaringBitmap... operands) {
+        return anyOf(leaves(operands));
+    }
+
+
+    /**
+     * 当前表达式与另一个表达式的and运算
+     *
+     * @param other 另一个表达式
+     * @return 表达式
+     */
+    public BitmapExpr and(BitmapExpr other) {
+        return new And(operands(this, other));
+    }
+
+
+    /**
+     * 当前表达式与bitmap的and运算
+     *
+     * @param other bitmap
+     * @return 表达式
+     */
+    public BitmapExpr and(ExtRoaringBitmap other) {
+        return and(of(other));
+    }
+
+
+    /**
+     * 当前表达式与另一个表达式的or运算
+     *
+     * @param other 另一个表达式
+     * @return 表达式
+     */
+    public BitmapExpr or(BitmapExpr other) {
+        return new Or(operands(this, other));
+    }
+
+
+    /**
+     * 当前表达式与bitmap的or运算
+     *
+     * @param other bitmap
+     * @return 表达式
+     */
+    public BitmapExpr or(ExtRoaringBitmap other) {
+        return or(of(other));
+    }
+
+
+    /**
+     * 当前表达式与另一个表达式的andNot运算
+     *
+     * @param other 另一个表达式
+     * @return 表达式
+     */
+    public BitmapExpr andNot(BitmapExpr other) {
+        if (other == null) {
+            throw new IllegalArgumentException("Expression operand must not be null.");
+        }
+        return new AndNot(this, other);
+    }
+
+
+    /**
+     * 当前表达式与bitmap的andNot运算
+     *
+     * @param other bitmap
+     * @return 表达式
+     */
+    public BitmapExpr andNot(ExtRoaringBitmap other) {
+        return andNot(of(other));
+    }
+
+
+    /**
+     * 计算表达式，结果为新的bitmap，不会修改任何操作数
+     *
+     * @return 计算结果
+     */
+    public ExtRoaringBitmap evaluate() {
+        BitmapExpr plan = plan();
+        ExtRoaringBitmap result = new ExtRoaringBitmap();
+        for (int key : plan.keys()) {
+            Partial p = plan.evalUnit(key);
+            if (p != null) {
+                result.putUnit(key, p.owned ? p.unit : p.unit.copy());
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * 计算表达式结果的基数，不生成结果bitmap
+     *
+     * @return 结果的基数
+     */
+    public long cardinality() {
+        BitmapExpr plan = plan();
+        long c = 0L;
+        for (int key : plan.keys()) {
+            Partial p = plan.evalUnit(key);
+            if (p != null) {
+                c += p.unit.cardinality();
+            }
+        }
+        return c;
+    }
+
+
+    /**
+     * 估算结果的基数，用于安排and操作数的顺序
+     */
+    abstract long estimate();
+
+
+    /**
+     * 结果中可能存在的unit bitmap的index，升序排列
+     */
+    abstract int[] keys();
+
+
+    /**
+     * 计算指定index上的unit bitmap，结果为空时返回null
+     */
+    abstract Partial evalUnit(int key);
+
+
+    /**
+     * 生成执行计划：展开嵌套的and/or，and的操作数按基数升序排列
+     */
+    abstract BitmapExpr plan();
+
+
+    /**
+     * 将操作数统一转换为表达式
+     */
+    private static List<BitmapExpr> operands(BitmapExpr... operands) {
+        List<BitmapExpr> list = new ArrayList<>(operands.length);
+        for (BitmapExpr operand : operands) {
+            if (operand == null) {
+                throw new IllegalArgumentException("Expression operand must not be null.");
+            }
+            list.add(operand);
+        }
+        return check(list);
+    }
+
+
+    private static BitmapExpr[] leaves(ExtRoaringBitmap... bitmaps) {
+        BitmapExpr[] leaves = new BitmapExpr[bitmaps.length];
+        for (int i = 0; i < bitmaps.length; i++) {
+            leaves[i] = of(bitmaps[i]);
+        }
+        return leaves;
+    }
+
+
+    private static List<BitmapExpr> check(List<BitmapExpr> list) {
+        if (list.isEmpty()) {
+            throw new IllegalArgumentException("At least one operand is required.");
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+
+    /**
+     * 将children的执行计划中与当前节点同类型的节点展开
+     */
+    private static List<BitmapExpr> flatten(List<BitmapExpr> children, Class<? extends BitmapExpr> type) {
+        List<BitmapExpr> list = new ArrayList<>(children.size());
+        for (BitmapExpr child : children) {
+            BitmapExpr p = child.plan();
+            if (p.getClass() == type) {
+                list.addAll(((Nary) p).children);
+            } else {
+                list.add(p);
+            }
+        }
+        return list;
+    }
+
+
+    /**
+     * 一个unit bitmap上的计算结果。owned为false时unit属于某个操作数，不能被修改
+     */
+    static final class Partial {
+
+        private final RoaringUnit unit;
+
+        private final boolean owned;
+
+        private Partial(RoaringUnit unit, boolean owned) {
+            this.unit = unit;
+            this.owned = owned;
+        }
+    }
+
+
+    private static final class Leaf extends BitmapExpr {
+
+        private final ExtRoaringBitmap bitmap;
+
+        private Leaf(ExtRoaringBitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        long estimate() {
+            return bitmap.cardinality();
+        }
+
+        @Override
+        int[] keys() {
+            UnitArray<RoaringUnit> units = bitmap.units();
+            int[] keys = new int[units.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = units.keyAt(i);
+            }
+            return keys;
+        }
+
+        @Override
+        Partial evalUnit(int key) {
+            RoaringUnit unit = bitmap.units().get(key);
+            if (unit == null || unit.bitmap().isEmpty()) {
+                return null;
+            }
+            return new Partial(unit, false);
+        }
+
+        @Override
+        BitmapExpr plan() {
+            return this;
+        }
+    }
+
+
+    private abstract static class Nary extends BitmapExpr {
+
+        final List<BitmapExpr> children;
+
+        private Nary(List<BitmapExpr> children) {
+            this.children = children;
+        }
+    }
+
+
+    private static final class And extends Nary {
+
+        private And(List<BitmapExpr> children) {
+            super(children);
+        }
+
+        @Override
+        long estimate() {
+            long min = Long.MAX_VALUE;
+            for (BitmapExpr child : children) {
+                min = Math.min(min, child.estimate());
+            }
+            return min;
+        }
+
+        @Override
+        int[] keys() {
+            int[] keys = children.get(0).keys();
+            for (int i = 1; i < children.size() && keys.length > 0; i++) {
+                keys = intersect(keys, children.get(i).keys());
+            }
+            return keys;
+        }
+
+        @Override
+        Partial evalUnit(int key) {
+            Partial result = children.get(0).evalUnit(key);
+            for (int i = 1; i < children.size() && result != null; i++) {
+                Partial p = children.get(i).evalUnit(key);
+                if (p == null) {
+                    return null;
+                }
+                if (result.owned) {
+                    result.unit.andInPlace(p.unit);
+                } else {
+                    result = new Partial(result.unit.and(p.unit), true);
+                }
+                if (result.unit.bitmap().isEmpty()) {
+                    return null;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        BitmapExpr plan() {
+            List<BitmapExpr> list = flatten(children, And.class);
+            long[] estimates = new long[list.size()];
+            for (int i = 0; i < estimates.length; i++) {
+                estimates[i] = list.get(i).estimate();
+            }
+            Integer[] order = new Integer[list.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingLong(i -> estimates[i]));
+            List<BitmapExpr> sorted = new ArrayList<>(list.size());
+            for (Integer i : order) {
+                sorted.add(list.get(i));
+            }
+            return new And(sorted);
+        }
+
+        private static int[] intersect(int[] a, int[] b) {
+            int[] result = new int[Math.min(a.length, b.length)];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < a.length && j < b.length) {
+                if (a[i] < b[j]) {
+                    i++;
+                } else if (a[i] > b[j]) {
+                    j++;
+                } else {
+                    result[n++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+            return Arrays.copyOf(result, n);
+        }
+    }
+
+
+    private static final class Or extends Nary {
+
+        private Or(List<BitmapExpr> children) {
+            super(children);
+        }
+
+        @Override
+        long estimate() {
+            long sum = 0L;
+            for (BitmapExpr child : children) {
+                sum += child.estimate();
+                if (sum < 0) {
+                    return Long.MAX_VALUE;
+                }
+            }
+            return sum;
+        }
+
+        @Override
+        int[] keys() {
+            int[] keys = children.get(0).keys();
+            for (int i = 1; i < children.size(); i++) {
+                keys = union(keys, children.get(i).keys());
+            }
+            return keys;
+        }
+
+        @Override
+        Partial evalUnit(int key) {
+            List<RoaringUnit> units = new ArrayList<>(children.size());
+            Partial single = null;
+            for (BitmapExpr child : children) {
+                Partial p = child.evalUnit(key);
+                if (p != null) {
+                    units.add(p.unit);
+                    single = p;
+                }
+            }
+            if (units.size() <= 1) {
+                return single;
+            }
+            RoaringBitmap[] bitmaps = new RoaringBitmap[units.size()];
+            long maxSize = 0;
+            for (int i = 0; i < bitmaps.length; i++) {
+                bitmaps[i] = units.get(i).bitmap();
+                maxSize = Math.max(maxSize, units.get(i).size());
+            }
+            return new Partial(new RoaringUnit(FastAggregation.horizontal_or(bitmaps), maxSize), true);
+        }
+
+        @Override
+        BitmapExpr plan() {
+            return new Or(flatten(children, Or.class));
+        }
+
+        private static int[] union(int[] a, int[] b) {
+            int[] result = new int[a.length + b.length];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < a.length || j < b.length) {
+                if (j >= b.length || (i < a.length && a[i] < b[j])) {
+                    result[n++] = a[i++];
+                } else if (i >= a.length || a[i] > b[j]) {
+                    result[n++] = b[j++];
+                } else {
+                    result[n++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+            return Arrays.copyOf(result, n);
+        }
+    }
+
+
+    private static final class AndNot extends BitmapExpr {
+
+        private final BitmapExpr left;
+
+        private final BitmapExpr right;
+
+        private AndNot(BitmapExpr left, BitmapExpr right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        long estimate() {
+            return left.estimate();
+        }
+
+        @Override
+        int[] keys() {
+            return left.keys();
+        }
+
+        @Override
+        Partial evalUnit(int key) {
+            Partial l = left.evalUnit(key);
+            if (l == null) {
+                return null;
+            }
+            Partial r = right.evalUnit(key);
+            if (r == null) {
+                return l;
+            }
+            Partial result = l;
+            if (l.owned) {
+                l.unit.andNotInPlace(r.unit);
+            } else {
+                result = new Partial(l.unit.andNot(r.unit), true);
+            }
+            return result.unit.bitmap().isEmpty() ? null : result;
+        }
+
+        @Override
+        BitmapExpr plan() {
+            return new AndNot(left.plan(), right.plan());
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package org.chobit.bitmap;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 扩展bitmap运算结果的缓存，适用于相同操作数上的运算被反复执行的场景。
+ * <p>
+ * 以运算类型及操作数对象本身(而非其内容)作为key，同时记录计算时各操作数的修改计数(见{@link AbstractExtBitmap#version()})。
+ * 任一操作数经add/remove等修改后修改计数发生变化，对应的缓存结果即失效，下次访问时重新计算。
+ * 缓存按结果实际占用的字节数({@link AbstractExtBitmap#getSizeInBytes()})计算容量，超出容量时淘汰最久未被访问的结果。
+ * <p>
+ * 缓存中的结果以快照(见{@link AbstractExtBitmap#snapshot()})的形式返回，调用方修改返回的bitmap不会影响缓存。
+ * 缓存只通过弱引用持有操作数，不会阻止操作数被GC回收，操作数被回收后其缓存结果在下次访问缓存时移除；
+ * 也可以通过{@link #invalidate(AbstractExtBitmap)}立即移除。被移除的结果实现了{@link AutoCloseable}时会被关闭。
+ * 缓存本身是线程安全的，但运算期间操作数不能被修改
+ *
+ * @author robin
+ */
+public final class BitmapResultCache {
+
+
+    private final long maxBytes;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 已被GC回收的操作数的弱引用
+     */
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+
+    private long bytes;
+
+    private long hitCount;
+
+    private long missCount;
+
+
+    /**
+     * @param maxBytes 缓存结果占用的最大字节数
+     */
+    public BitmapResultCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Max bytes must be positive. Your max bytes is: " + maxBytes + ".");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+
+    /**
+     * 两个bitmap的and运算，结果被缓存
+     *
+     * @param a   bitmap
+     * @param b   另一个bitmap
+     * @param <T> bitmap类型
+     * @return and运算结果
+     */
+    public <T extends AbstractExtBitmap<T, ?>> T and(T a, T b) {
+        return compute(Operation.AND, a, b);
+    }
+
+
+    /**
+     * 两个bitmap的or运算，结果被缓存
+     *
+     * @param a   bitmap
+     * @param b   另一个bitmap
+     * @param <T> bitmap类型
+     * @return or运算结果
+     */
+    public <T extends AbstractExtBitmap<T, ?>> T or(T a, T b) {
+        return compute(Operation.OR, a, b);
+    }
+
+
+    /**
+     * 两个bitmap的xor运算，结果被缓存
+     *
+     * @param a   bitmap
+     * @param b   另一个bitmap
+     * @param <T> bitmap类型
+     * @return xor运算结果
+     */
+    public <T extends AbstractExtBitmap<T, ?>> T xor(T a, T b) {
+        return compute(Operation.XOR, a, b);
+    }
+
+
+    /**
+     * 两个bitmap的andNot运算，结果被缓存
+     *
+     * @param a   bitmap
+     * @param b   另一个bitmap
+     * @param <T> bitmap类型
+     * @return andNot运算结果
+     */
+    public <T extends AbstractExtBitmap<T, ?>> T andNot(T a, T b) {
+        return compute(Operation.AND_NOT, a, b);
+    }
+
+
+    /**
+     * 移除全部以bitmap为操作数的缓存结果
+     *
+     * @param bitmap 操作数
+     */
+    public synchronized void invalidate(AbstractExtBitmap<?, ?> bitmap) {
+        Iterator<Map.Entry<Key, Entry>> itr = entries.entrySet().iterator();
+        while (itr.hasNext()) {
+            Map.Entry<Key, Entry> e = itr.next();
+            if (e.getKey().left.get() == bitmap || e.getKey().right.get() == bitmap) {
+                itr.remove();
+                release(e.getValue());
+            }
+        }
+        expunge();
+    }
+
+
+    /**
+     * 清空缓存
+     */
+    public synchronized void clear() {
+        for (Entry e : entries.values()) {
+            release(e);
+        }
+        entries.clear();
+        expunge();
+    }
+
+
+    /**
+     * 缓存的结果数量
+     *
+     * @return 结果数量
+     */
+    public synchronized int size() {
+        expunge();
+        return entries.size();
+    }
+
+
+    /**
+     * 缓存结果占用的字节数
+     *
+     * @return 字节数
+     */
+    public synchronized long sizeInBytes() {
+        expunge();
+        return bytes;
+    }
+
+
+    /**
+     * 命中缓存的次数
+     *
+     * @return 命中次数
+     */
+    public synchronized long hitCount() {
+        return hitCount;
+    }
+
+
+    /**
+     * 未命中缓存的次数
+     *
+     * @return 未命中次数
+     */
+    public synchronized long missCount() {
+        return missCount;
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private <T extends AbstractExtBitmap<T, ?>> T compute(Operation operation, T a, T b) {
+        if (a == null || b == null) {
+            throw new IllegalArgumentException("Bitmap operand must not be null.");
+        }
+        T left = a;
+        T right = b;
+        if (operation.commutative && System.identityHashCode(a) > System.identityHashCode(b)) {
+            left = b;
+            right = a;
+        }
+        Key lookup = new Key(operation, left, right, null);
+        long leftVersion = left.version();
+        long rightVersion = right.version();
+        synchronized (this) {
+            expunge();
+            Entry e = entries.get(lookup);
+            if (e != null) {
+                if (e.leftVersion == leftVersion && e.rightVersion == rightVersion) {
+                    hitCount++;
+                    return ((T) e.result).snapshot();
+                }
+                entries.remove(lookup);
+                release(e);
+            }
+            missCount++;
+        }
+
+        T result = operation.apply(left, right);
+        long size = result.getSizeInBytes();
+        if (size <= maxBytes) {
+            Entry e = new Entry(leftVersion, rightVersion, result.snapshot(), size);
+            synchronized (this) {
+                Key key = new Key(operation, left, right, collected);
+                Entry old = entries.put(key, e);
+                if (old != null) {
+                    release(old);
+                }
+                bytes += size;
+                evict();
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * 淘汰最久未被访问的结果，直到占用的字节数不超过容量
+     */
+    private void evict() {
+        Iterator<Entry> itr = entries.values().iterator();
+        while (bytes > maxBytes && itr.hasNext()) {
+            Entry e = itr.next();
+            itr.remove();
+            release(e);
+        }
+    }
+
+
+    /**
+     * 移除操作数已被GC回收的结果
+     */
+    private void expunge() {
+        Reference<?> ref;
+        while ((ref = collected.poll()) != null) {
+            Entry e = entries.remove(((OperandReference) ref).key);
+            if (e != null) {
+                release(e);
+            }
+        }
+    }
+
+
+    /**
+     * 已从缓存中移除的结果不再计入容量，结果实现了{@link AutoCloseable}时将其关闭
+     */
+    private void release(Entry e) {
+        bytes -= e.bytes;
+        if (e.result instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) e.result).close();
+            } catch (Exception ex) {
+                throw new IllegalStateException("Failed to close cached result.", ex);
+            }
+        }
+    }
+
+
+    private enum Operation {
+
+        AND(true) {
+            @Override
+            <T extends AbstractExtBitmap<T, ?>> T apply(T a, T b) {
+                return a.and(b);
+            }
+        },
+
+        OR(true) {
+            @Override
+            <T extends AbstractExtBitmap<T, ?>> T apply(T a, T b) {
+                return a.or(b);
+            }
+        },
+
+        XOR(true) {
+            @Override
+            <T extends AbstractExtBitmap<T, ?>> T apply(T a, T b) {
+                return a.xor(b);
+            }
+        },
+
+        AND_NOT(false) {
+            @Override
+            <T extends AbstractExtBitmap<T, ?>> T apply(T a, T b) {
+                return a.andNot(b);
+            }
+        };
+
+        private final boolean commutative;
+
+        Operation(boolean commutative) {
+            this.commutative = commutative;
+        }
+
+        abstract <T extends AbstractExtBitmap<T, ?>> T apply(T a, T b);
+    }
+
+
+    /**
+     * 以运算类型及操作数对象本身作为缓存的key，通过弱引用持有操作数
+     */
+    private static final class Key {
+
+        private final Operation operation;
+
+        private final OperandReference left;
+
+        private final OperandReference right;
+
+        private final int hash;
+
+        /**
+         * @param queue 操作数被回收后弱引用加入的队列，只用于查找的key传入null
+         */
+        private Key(Operation operation, Object left, Object right, ReferenceQueue<Object> queue) {
+            this.operation = operation;
+            this.left = new OperandReference(left, queue, this);
+            this.right = new OperandReference(right, queue, this);
+            this.hash = (operation.ordinal() * 31 + System.identityHashCode(left)) * 31 + System.identityHashCode(right);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            Object l = left.get();
+            Object r = right.get();
+            return operation == k.operation && l != null && r != null && l == k.left.get() && r == k.right.get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+
+    /**
+     * 操作数的弱引用，被回收后通过key移除对应的结果
+     */
+    private static final class OperandReference extends WeakReference<Object> {
+
+        private final Key key;
+
+        private OperandReference(Object operand, ReferenceQueue<Object> queue, Key key) {
+            super(operand, queue);
+            this.key = key;
+        }
+    }
+
+
+    private static final class Entry {
+
+        private final long leftVersion;
+
+        private final long rightVersion;
+
+        private final AbstractExtBitmap<?, ?> result;
+
+        private final long bytes;
+
+        private Entry(long leftVersion, long rightVersion, AbstractExtBitmap<?, ?> result, long bytes) {
+            this.leftVersion = leftVersion;
+            this.rightVersion = rightVersion;
+            this.result = result;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.chobit.bitmap;
+
+import java.util.Comparator;
+import java.util.Spliterator;
+import java.util.function.LongConsumer;
+
+/**
+ * 遍历bitmap中 [from, last] 区间元素的Spliterator。
+ * <p>
+ * 优先在unit bitmap(2^32)边界上拆分，区间位于同一unit bitmap内时在container(2^16)边界上拆分，
+ * 拆分后两部分的元素数量由{@link IBitmap#rangeCardinality(long, long)}精确计算。
+ * 遍历期间bitmap不能被修改
+ *
+ * @author robin
+ */
+final class BitmapSpliterator implements Spliterator.OfLong {
+
+
+    private static final int CHARACTERISTICS = ORDERED | DISTINCT | SORTED | NONNULL | SIZED | SUBSIZED;
+
+    private static final long UNIT_GRAIN = 1L << RoaringUnit.UNIT_BITS;
+
+    private static final long CONTAINER_GRAIN = 1L << 16;
+
+    /**
+     * 元素数量少于该值时不再拆分
+     */
+    private static final long MIN_SPLIT_SIZE = 1 << 10;
+
+
+    private final IBitmap<?> bitmap;
+
+    private long from;
+
+    private long last;
+
+    private long size;
+
+    private PeekableLongIterator itr;
+
+
+    BitmapSpliterator(IBitmap<?> bitmap, long from, long last, long size) {
+        this.bitmap = bitmap;
+        this.from = from;
+        this.last = last;
+        this.size = size;
+    }
+
+
+    @Override
+    public boolean tryAdvance(LongConsumer action) {
+        PeekableLongIterator it = iterator();
+        if (size > 0 && it.hasNext() && it.peekNext() <= last) {
+            size--;
+            action.accept(it.next());
+            return true;
+        }
+        size = 0;
+        return false;
+    }
+
+
+    @Override
+    public void forEachRemaining(LongConsumer action) {
+        PeekableLongIterator it = iterator();
+        long remaining = size;
+        while (remaining > 0 && it.hasNext()) {
+            long v = it.next();
+            if (v > last) {
+                break;
+            }
+            remaining--;
+            action.accept(v);
+        }
+        size = 0;
+    }
+
+
+    @Override
+    public OfLong trySplit() {
+        if (itr != null) {
+            return null;
+        }
+        while (size >= MIN_SPLIT_SIZE) {
+            long grain = (from / UNIT_GRAIN) != (last / UNIT_GRAIN) ? UNIT_GRAIN : CONTAINER_GRAIN;
+            long mid = (from + ((last - from) >>> 1)) & -grain;
+            if (mid <= from) {
+                mid = (from & -grain) + grain;
+            }
+            if (mid > last) {
+                return null;
+            }
+            long leftSize = bitmap.rangeCardinality(from, mid);
+            if (leftSize == 0) {
+                from = mid;
+            } else if (leftSize == size) {
+                last = mid - 1;
+            } else {
+                BitmapSpliterator prefix = new BitmapSpliterator(bitmap, from, mid - 1, leftSize);
+                from = mid;
+                size -= leftSize;
+                return prefix;
+            }
+        }
+        return null;
+    }
+
+
+    @Override
+    public long estimateSize() {
+        return size;
+    }
+
+
+    @Override
+    public int characteristics() {
+        return CHARACTERISTICS;
+    }
+
+
+    @Override
+    public Comparator<? super Long> getComparator() {
+        return null;
+    }
+
+
+    private PeekableLongIterator iterator() {
+        if (itr == null) {
+            itr = bitmap.peekableLongIterator();
+            itr.advanceIfNeeded(from);
+        }
+        return itr;
+    }
+}
@@ -0,0 +1,144 @@
+package org.chobit.bitmap;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * 最多只允许读取指定字节数的{@link DataInput}，超出时抛出EOFException。
+ * <p>
+ * 用于直接从输入流中读取单元数据，同时保证读取的字节数不超过单元索引表中记录的数据长度。
+ *
+ * @author robin
+ */
+final class BoundedDataInput implements DataInput {
+
+
+    private final DataInput in;
+
+    private long remaining;
+
+
+    BoundedDataInput(DataInput in, long limit) {
+        this.in = in;
+        this.remaining = limit;
+    }
+
+
+    /**
+     * 剩余可以读取的字节数
+     *
+     * @return 剩余可以读取的字节数
+     */
+    long remaining() {
+        return remaining;
+    }
+
+
+    private void require(int n) throws EOFException {
+        if (remaining < n) {
+            throw new EOFException();
+        }
+        remaining -= n;
+    }
+
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        require(len);
+        in.readFully(b, off, len);
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+        int skipped = in.skipBytes((int) Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        require(1);
+        return in.readBoolean();
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        require(1);
+        return in.readByte();
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        require(1);
+        return in.readUnsignedByte();
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        require(Short.BYTES);
+        return in.readShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        require(Short.BYTES);
+        return in.readUnsignedShort();
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        require(Character.BYTES);
+        return in.readChar();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        require(Integer.BYTES);
+        return in.readInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        require(Long.BYTES);
+        return in.readLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        require(Float.BYTES);
+        return in.readFloat();
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        require(Double.BYTES);
+        return in.readDouble();
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        while (remaining > 0) {
+            int c = readUnsignedByte();
+            if (c == '\n') {
+                return builder.toString();
+            }
+            if (c != '\r') {
+                builder.append((char) c);
+            }
+        }
+        return builder.length() == 0 ? null : builder.toString();
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+}
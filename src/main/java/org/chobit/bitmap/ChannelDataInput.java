@@ -0,0 +1,184 @@
+package org.chobit.bitmap;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * 通过可重用的ByteBuffer从{@link ReadableByteChannel}中读取{@link DataInput}。
+ * <p>
+ * 为减少读取次数会从channel中预读数据。channel为{@link SeekableByteChannel}时，
+ * 调用{@link #release()}会将channel的position退回到实际读取的位置。
+ * <p>
+ * 只支持阻塞模式的channel，非阻塞模式的channel在构造时即被拒绝，read返回0时抛出IOException，不会空转。
+ *
+ * @author robin
+ */
+final class ChannelDataInput implements DataInput {
+
+
+    private final ReadableByteChannel channel;
+
+    private final ByteBuffer buffer;
+
+
+    ChannelDataInput(ReadableByteChannel channel, ByteBuffer buffer) {
+        if (buffer.capacity() < ChannelDataOutput.MIN_BUFFER_SIZE) {
+            throw new IllegalArgumentException(
+                    "Buffer capacity must not be less than " + ChannelDataOutput.MIN_BUFFER_SIZE + ".");
+        }
+        ChannelDataOutput.checkBlocking(channel);
+        this.channel = channel;
+        this.buffer = buffer;
+        this.buffer.clear().flip();
+        this.buffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+
+    /**
+     * 结束读取。channel为{@link SeekableByteChannel}时将预读的数据退回channel
+     *
+     * @throws IOException
+     */
+    void release() throws IOException {
+        if (buffer.hasRemaining() && channel instanceof SeekableByteChannel) {
+            SeekableByteChannel seekable = (SeekableByteChannel) channel;
+            seekable.position(seekable.position() - buffer.remaining());
+        }
+        buffer.clear().flip();
+    }
+
+
+    private ByteBuffer require(int n) throws IOException {
+        if (buffer.remaining() < n) {
+            buffer.compact();
+            try {
+                while (buffer.position() < n) {
+                    int read = channel.read(buffer);
+                    if (read < 0) {
+                        throw new EOFException();
+                    }
+                    if (read == 0) {
+                        throw new IOException("Channel returned no data, non-blocking channels are not supported.");
+                    }
+                }
+            } finally {
+                buffer.flip();
+            }
+        }
+        return buffer;
+    }
+
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, require(1).remaining());
+            buffer.get(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+        int skipped = 0;
+        while (skipped < n) {
+            if (!buffer.hasRemaining()) {
+                try {
+                    require(1);
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+            int k = Math.min(n - skipped, buffer.remaining());
+            buffer.position(buffer.position() + k);
+            skipped += k;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        return require(1).get();
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        return require(Short.BYTES).getShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xFFFF;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        return require(Character.BYTES).getChar();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        return require(Integer.BYTES).getInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        return require(Long.BYTES).getLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return require(Float.BYTES).getFloat();
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return require(Double.BYTES).getDouble();
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        while (true) {
+            int c;
+            try {
+                c = readUnsignedByte();
+            } catch (EOFException e) {
+                return builder.length() == 0 ? null : builder.toString();
+            }
+            if (c == '\n') {
+                return builder.toString();
+            }
+            if (c != '\r') {
+                builder.append((char) c);
+            }
+        }
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+}
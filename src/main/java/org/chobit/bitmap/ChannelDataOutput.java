@@ -0,0 +1,185 @@
+package org.chobit.bitmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 通过可重用的ByteBuffer将{@link DataOutput}写入{@link WritableByteChannel}。
+ * <p>
+ * 数据先写入buffer，buffer写满或调用{@link #flush()}时再写入channel，不会在内存中保留完整的序列化数据。
+ * <p>
+ * 只支持阻塞模式的channel，非阻塞模式的channel在构造时即被拒绝，write返回0时抛出IOException，不会空转。
+ *
+ * @author robin
+ */
+final class ChannelDataOutput implements DataOutput {
+
+
+    /**
+     * 默认的buffer大小
+     */
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * buffer的最小容量，需要能够容纳一个long
+     */
+    static final int MIN_BUFFER_SIZE = Long.BYTES;
+
+
+    private final WritableByteChannel channel;
+
+    private final ByteBuffer buffer;
+
+
+    ChannelDataOutput(WritableByteChannel channel, ByteBuffer buffer) {
+        if (buffer.capacity() < MIN_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Buffer capacity must not be less than " + MIN_BUFFER_SIZE + ".");
+        }
+        checkBlocking(channel);
+        this.channel = channel;
+        this.buffer = buffer;
+        this.buffer.clear();
+        this.buffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+
+    /**
+     * 检查channel是否为阻塞模式，非阻塞模式的{@link SelectableChannel}抛出IllegalArgumentException
+     *
+     * @param channel channel
+     */
+    static void checkBlocking(Channel channel) {
+        if (channel instanceof SelectableChannel && !((SelectableChannel) channel).isBlocking()) {
+            throw new IllegalArgumentException("Non-blocking channel is not supported.");
+        }
+    }
+
+
+    /**
+     * 按照序列化数据的大小分配一次性使用的堆上buffer，最大不超过{@link #DEFAULT_BUFFER_SIZE}。
+     * 不使用direct buffer，避免每次调用都分配只能由GC回收的堆外内存
+     *
+     * @param serializedSize 序列化数据的字节数
+     * @return 堆上buffer
+     */
+    static ByteBuffer allocate(long serializedSize) {
+        long capacity = Math.max(MIN_BUFFER_SIZE, Math.min(serializedSize, DEFAULT_BUFFER_SIZE));
+        return ByteBuffer.allocate((int) capacity);
+    }
+
+
+    /**
+     * 将buffer中的数据全部写入channel
+     *
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                throw new IOException("Channel accepted no data, non-blocking channels are not supported.");
+            }
+        }
+        buffer.clear();
+    }
+
+
+    private ByteBuffer require(int n) throws IOException {
+        if (buffer.remaining() < n) {
+            flush();
+        }
+        return buffer;
+    }
+
+
+    @Override
+    public void write(int b) throws IOException {
+        require(1).put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void writeBoolean(boolean v) throws IOException {
+        write(v ? 1 : 0);
+    }
+
+    @Override
+    public void writeByte(int v) throws IOException {
+        write(v);
+    }
+
+    @Override
+    public void writeShort(int v) throws IOException {
+        require(Short.BYTES).putShort((short) v);
+    }
+
+    @Override
+    public void writeChar(int v) throws IOException {
+        require(Character.BYTES).putChar((char) v);
+    }
+
+    @Override
+    public void writeInt(int v) throws IOException {
+        require(Integer.BYTES).putInt(v);
+    }
+
+    @Override
+    public void writeLong(long v) throws IOException {
+        require(Long.BYTES).putLong(v);
+    }
+
+    @Override
+    public void writeFloat(float v) throws IOException {
+        require(Float.BYTES).putFloat(v);
+    }
+
+    @Override
+    public void writeDouble(double v) throws IOException {
+        require(Double.BYTES).putDouble(v);
+    }
+
+    @Override
+    public void writeBytes(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            write(s.charAt(i));
+        }
+    }
+
+    @Override
+    public void writeChars(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            writeChar(s.charAt(i));
+        }
+    }
+
+    @Override
+    public void writeUTF(String s) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(s.length() + 2);
+        new DataOutputStream(bos).writeUTF(s);
+        write(bos.toByteArray());
+    }
+}
@@ -0,0 +1,366 @@
+package org.chobit.bitmap;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * 线程安全的扩展RoaringBitmap，可设置的值为[0, Long.MAX_VALUE]。
+ * <p>
+ * 单元目录是不可变的有序数组，新增单元时复制出新目录并通过CAS替换，查找单元无需加锁。
+ * 每个单元各自持有一个{@link StampedLock}，写入不同单元的线程之间不会竞争；
+ * {@link #check(long)}优先使用乐观读，只有与写入冲突时才获取读锁。
+ * <p>
+ * 跨单元的操作(如{@link #cardinality()})逐个单元加锁，结果不保证是整个bitmap在某一时刻的快照。
+ * <p>
+ * 当前类只提供并发写入场景下的增删及查询操作，不实现{@link IBitmap}，不能直接替代{@link ExtRoaringBitmap}。
+ * 遍历、序列化及集合运算等需要先通过{@link #toExtRoaringBitmap()}复制为ExtRoaringBitmap后进行。
+ *
+ * @author robin
+ */
+public final class ConcurrentExtRoaringBitmap {
+
+
+    private static final int UNIT_BITS = RoaringUnit.UNIT_BITS;
+
+    private static final long UNIT_MASK = RoaringUnit.maxSize() - 1;
+
+
+    private final AtomicReference<Directory> directory = new AtomicReference<>(Directory.EMPTY);
+
+
+    /**
+     * 添加长整型值到当前bitmap中
+     *
+     * @param offset 长整型值，对应bitmap上的位置
+     */
+    public void add(final long offset) {
+        checkOffset(offset);
+        Slot slot = getOrCreateSlot((int) (offset >>> UNIT_BITS));
+        long stamp = slot.lock.writeLock();
+        try {
+            slot.unit.add(offset & UNIT_MASK);
+        } finally {
+            slot.lock.unlockWrite(stamp);
+        }
+    }
+
+
+    /**
+     * 如指定位置上已经有值，将其移除
+     *
+     * @param offset 长整型值，对应bitmap上的位置
+     */
+    public void remove(final long offset) {
+        Slot slot = findSlot(offset);
+        if (slot == null) {
+            return;
+        }
+        long stamp = slot.lock.writeLock();
+        try {
+            slot.unit.remove(offset & UNIT_MASK);
+        } finally {
+            slot.lock.unlockWrite(stamp);
+        }
+    }
+
+
+    /**
+     * 将区间 [rangeStart, rangeEnd) 内的全部值添加到bitmap中
+     *
+     * @param rangeStart 区间开始位置(包含)
+     * @param rangeEnd   区间结束位置(不包含)
+     */
+    public void add(final long rangeStart, final long rangeEnd) {
+        if (rangeStart >= rangeEnd) {
+            throw new IllegalArgumentException("Range start:[" + rangeStart + "] is greater than end:[" + rangeEnd + "].");
+        }
+        checkOffset(rangeStart);
+        checkOffset(rangeEnd - 1);
+        long maxIndex = (rangeEnd - 1) >>> UNIT_BITS;
+        for (long index = rangeStart >>> UNIT_BITS; index <= maxIndex; index++) {
+            long base = index << UNIT_BITS;
+            Slot slot = getOrCreateSlot((int) index);
+            long stamp = slot.lock.writeLock();
+            try {
+                slot.unit.add(Math.max(0, rangeStart - base), Math.min(RoaringUnit.maxSize(), rangeEnd - base));
+            } finally {
+                slot.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+
+    /**
+     * 将区间 [rangeStart, rangeEnd) 内的全部值从bitmap中移除
+     *
+     * @param rangeStart 区间开始位置(包含)
+     * @param rangeEnd   区间结束位置(不包含)
+     */
+    public void remove(final long rangeStart, final long rangeEnd) {
+        if (rangeStart >= rangeEnd) {
+            return;
+        }
+        checkOffset(rangeEnd - 1);
+        long minIndex = Math.max(0, rangeStart) >>> UNIT_BITS;
+        long maxIndex = (rangeEnd - 1) >>> UNIT_BITS;
+        Directory d = directory.get();
+        int from = d.indexOf((int) minIndex);
+        for (int i = from < 0 ? -from - 1 : from; i < d.keys.length; i++) {
+            int index = d.keys[i];
+            if (index > maxIndex) {
+                break;
+            }
+            long base = (long) index << UNIT_BITS;
+            Slot slot = d.slots[i];
+            long stamp = slot.lock.writeLock();
+            try {
+                slot.unit.remove(Math.max(0, rangeStart - base), Math.min(RoaringUnit.maxSize(), rangeEnd - base));
+            } finally {
+                slot.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+
+    /**
+     * 检查bitmap指定位置是否为true
+     *
+     * @param offset bitmap上的指定位置
+     * @return 如果bitmap中的该bit位已经设置有值则为true，反之为false
+     */
+    public boolean check(final long offset) {
+        Slot slot = findSlot(offset);
+        if (slot == null) {
+            return false;
+        }
+        long x = offset & UNIT_MASK;
+        long stamp = slot.lock.tryOptimisticRead();
+        if (stamp != 0L) {
+            try {
+                boolean result = slot.unit.check(x);
+                if (slot.lock.validate(stamp)) {
+                    return result;
+                }
+            } catch (RuntimeException e) {
+                // 读取过程中单元被并发修改，改为获取读锁后重新读取
+            }
+        }
+        stamp = slot.lock.readLock();
+        try {
+            return slot.unit.check(x);
+        } finally {
+            slot.lock.unlockRead(stamp);
+        }
+    }
+
+
+    /**
+     * bitmap中值的总数
+     *
+     * @return bitmap中值的总数
+     */
+    public long cardinality() {
+        Directory d = directory.get();
+        long c = 0L;
+        for (Slot slot : d.slots) {
+            c += slot.cardinality();
+        }
+        return c;
+    }
+
+
+    /**
+     * bitmap是否为空
+     *
+     * @return bitmap中没有任何值则返回true
+     */
+    public boolean isEmpty() {
+        return first() < 0;
+    }
+
+
+    /**
+     * 获取bitmap中第一个(最小的)值
+     *
+     * @return bitmap中第一个(最小的)值，bitmap为空则返回-1
+     */
+    public long first() {
+        Directory d = directory.get();
+        for (int i = 0; i < d.keys.length; i++) {
+            long v = d.slots[i].first();
+            if (v >= 0) {
+                return ((long) d.keys[i] << UNIT_BITS) + v;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * 获取bitmap中最后一个(最大的)值
+     *
+     * @return bitmap中最后一个(最大的)值，bitmap为空则返回-1
+     */
+    public long last() {
+        Directory d = directory.get();
+        for (int i = d.keys.length - 1; i >= 0; i--) {
+            long v = d.slots[i].last();
+            if (v >= 0) {
+                return ((long) d.keys[i] << UNIT_BITS) + v;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * 实际存在的unit bitmap的数量
+     *
+     * @return unit bitmap的数量
+     */
+    public int unitsLength() {
+        return directory.get().keys.length;
+    }
+
+
+    /**
+     * 将当前bitmap复制为非线程安全的ExtRoaringBitmap。各单元分别在读锁下复制
+     *
+     * @return 复制得到的ExtRoaringBitmap
+     */
+    public ExtRoaringBitmap toExtRoaringBitmap() {
+        Directory d = directory.get();
+        ExtRoaringBitmap result = new ExtRoaringBitmap();
+        for (int i = 0; i < d.keys.length; i++) {
+            Slot slot = d.slots[i];
+            long stamp = slot.lock.readLock();
+            try {
+                result.putUnit(d.keys[i], slot.unit.copy());
+            } finally {
+                slot.lock.unlockRead(stamp);
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * 获取offset所在的单元，不存在时返回null
+     */
+    private Slot findSlot(long offset) {
+        if (offset < 0) {
+            return null;
+        }
+        Directory d = directory.get();
+        int pos = d.indexOf((int) (offset >>> UNIT_BITS));
+        return pos < 0 ? null : d.slots[pos];
+    }
+
+
+    /**
+     * 获取指定index上的单元，不存在时复制出包含新单元的目录，并通过CAS替换当前目录
+     */
+    private Slot getOrCreateSlot(int index) {
+        Directory d = directory.get();
+        int pos = d.indexOf(index);
+        if (pos >= 0) {
+            return d.slots[pos];
+        }
+        Slot slot = new Slot();
+        while (true) {
+            Directory grown = d.insert(-pos - 1, index, slot);
+            if (directory.compareAndSet(d, grown)) {
+                return slot;
+            }
+            d = directory.get();
+            pos = d.indexOf(index);
+            if (pos >= 0) {
+                return d.slots[pos];
+            }
+        }
+    }
+
+
+    private void checkOffset(long offset) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset must not be negative. Your offset is: " + offset + ".");
+        }
+    }
+
+
+    /**
+     * 不可变的单元目录
+     */
+    private static final class Directory {
+
+        private static final Directory EMPTY = new Directory(new int[0], new Slot[0]);
+
+        private final int[] keys;
+
+        private final Slot[] slots;
+
+        private Directory(int[] keys, Slot[] slots) {
+            this.keys = keys;
+            this.slots = slots;
+        }
+
+        private int indexOf(int key) {
+            return Arrays.binarySearch(keys, key);
+        }
+
+        private Directory insert(int pos, int key, Slot slot) {
+            int n = keys.length;
+            int[] newKeys = new int[n + 1];
+            Slot[] newSlots = new Slot[n + 1];
+            System.arraycopy(keys, 0, newKeys, 0, pos);
+            System.arraycopy(slots, 0, newSlots, 0, pos);
+            newKeys[pos] = key;
+            newSlots[pos] = slot;
+            System.arraycopy(keys, pos, newKeys, pos + 1, n - pos);
+            System.arraycopy(slots, pos, newSlots, pos + 1, n - pos);
+            return new Directory(newKeys, newSlots);
+        }
+    }
+
+
+    /**
+     * 单元及其锁
+     */
+    private static final class Slot {
+
+        private final StampedLock lock = new StampedLock();
+
+        private final RoaringUnit unit = new RoaringUnit();
+
+        /**
+         * 单元的基数。不使用RoaringUnit缓存的基数，读锁下读取的线程之间不会写入任何字段
+         */
+        private long cardinality() {
+            long stamp = lock.readLock();
+            try {
+                return unit.bitmap().getLongCardinality();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private long first() {
+            long stamp = lock.readLock();
+            try {
+                return unit.first();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private long last() {
+            long stamp = lock.readLock();
+            try {
+                return unit.last();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+    }
+}
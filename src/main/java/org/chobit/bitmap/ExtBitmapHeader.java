@@ -0,0 +1,314 @@
+package org.chobit.bitmap;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 扩展bitmap序列化数据的格式头。
+ * <p>
+ * 格式为：格式标识(int)、格式版本(byte)、单元容量位数(byte)、单元数量(int)，
+ * 之后是单元索引表，每个单元一项：单元index(int)、数据偏移(long)、数据长度(int)、基数(long)，
+ * 最后依次为各单元的数据。数据偏移为相对于第一个单元数据的字节偏移。
+ * <p>
+ * 读取格式头后，无需解析其他单元即可直接定位任意单元的数据，也可以直接获取各单元的基数。
+ *
+ * @author robin
+ */
+public final class ExtBitmapHeader {
+
+
+    /**
+     * 序列化格式的标识，用于和没有格式头的旧版序列化数据区分
+     */
+    static final int SERIAL_COOKIE = 0x45584254;
+
+    /**
+     * 带有单元索引表的格式版本
+     */
+    static final byte SERIAL_VERSION_2 = 2;
+
+    /**
+     * 格式头中固定部分的字节数
+     */
+    static final int FIXED_SIZE = 4 + 1 + 1 + 4;
+
+    /**
+     * 单元索引表中每一项的字节数
+     */
+    static final int ENTRY_SIZE = 4 + 8 + 4 + 8;
+
+    /**
+     * 从输入流读取单元索引表时数组的初始容量。数组随实际读取的项数增长，不会按照未经校验的单元数量一次性分配
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+
+
+    private final int unitBits;
+
+    private final int[] keys;
+
+    private final long[] offsets;
+
+    private final int[] lengths;
+
+    private final long[] cardinalities;
+
+
+    ExtBitmapHeader(int unitBits, int[] keys, long[] offsets, int[] lengths, long[] cardinalities) {
+        this.unitBits = unitBits;
+        this.keys = keys;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.cardinalities = cardinalities;
+    }
+
+
+    /**
+     * 从输入流中读取格式头，读取后输入流位于第一个单元数据的开始位置
+     *
+     * @param in 输入流
+     * @return 格式头
+     * @throws IOException 输入不是有效的格式头
+     */
+    public static ExtBitmapHeader read(DataInput in) throws IOException {
+        int cookie = in.readInt();
+        if (cookie != SERIAL_COOKIE) {
+            throw new IOException("Invalid serial cookie:[" + cookie + "].");
+        }
+        checkVersion(in.readByte());
+        return readAfterVersion(in);
+    }
+
+
+    /**
+     * 从buffer的当前位置读取格式头，不会修改buffer的position
+     *
+     * @param buffer 序列化数据
+     * @return 格式头
+     * @throws IOException 输入不是有效的格式头
+     */
+    public static ExtBitmapHeader read(ByteBuffer buffer) throws IOException {
+        ByteBuffer in = buffer.duplicate();
+        try {
+            int cookie = in.getInt();
+            if (cookie != SERIAL_COOKIE) {
+                throw new IOException("Invalid serial cookie:[" + cookie + "].");
+            }
+            checkVersion(in.get());
+            int bits = in.get();
+            int count = checkCount(in.getInt(), in.remaining());
+            int[] keys = new int[count];
+            long[] offsets = new long[count];
+            int[] lengths = new int[count];
+            long[] cardinalities = new long[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = in.getInt();
+                offsets[i] = in.getLong();
+                lengths[i] = in.getInt();
+                cardinalities[i] = in.getLong();
+            }
+            return validate(bits, keys, offsets, lengths, cardinalities);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Serialized data is truncated.", e);
+        }
+    }
+
+
+    /**
+     * 读取格式标识和格式版本之后的部分
+     *
+     * @param in 输入流
+     * @return 格式头
+     * @throws IOException 输入不是有效的格式头
+     */
+    static ExtBitmapHeader readAfterVersion(DataInput in) throws IOException {
+        int bits = in.readByte();
+        int count = checkCount(in.readInt(), Integer.MAX_VALUE);
+        int capacity = Math.min(count, INITIAL_CAPACITY);
+        int[] keys = new int[capacity];
+        long[] offsets = new long[capacity];
+        int[] lengths = new int[capacity];
+        long[] cardinalities = new long[capacity];
+        for (int i = 0; i < count; i++) {
+            if (i == keys.length) {
+                capacity = (int) Math.min(count, 2L * capacity);
+                keys = Arrays.copyOf(keys, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                cardinalities = Arrays.copyOf(cardinalities, capacity);
+            }
+            keys[i] = in.readInt();
+            offsets[i] = in.readLong();
+            lengths[i] = in.readInt();
+            cardinalities[i] = in.readLong();
+        }
+        return validate(bits, keys, offsets, lengths, cardinalities);
+    }
+
+
+    /**
+     * 写出格式头
+     *
+     * @param out 输出流
+     * @throws IOException
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(SERIAL_COOKIE);
+        out.writeByte(SERIAL_VERSION_2);
+        out.writeByte(unitBits);
+        out.writeInt(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            out.writeInt(keys[i]);
+            out.writeLong(offsets[i]);
+            out.writeInt(lengths[i]);
+            out.writeLong(cardinalities[i]);
+        }
+    }
+
+
+    /**
+     * 单元容量的二进制位数
+     *
+     * @return 单元容量的二进制位数
+     */
+    public int unitBits() {
+        return unitBits;
+    }
+
+
+    /**
+     * 单元数量
+     *
+     * @return 单元数量
+     */
+    public int unitCount() {
+        return keys.length;
+    }
+
+
+    /**
+     * 第pos个单元的index
+     *
+     * @param pos 单元在索引表中的位置
+     * @return 单元的index
+     */
+    public int keyAt(int pos) {
+        return keys[pos];
+    }
+
+
+    /**
+     * 第pos个单元的数据相对于第一个单元数据的偏移
+     *
+     * @param pos 单元在索引表中的位置
+     * @return 数据偏移
+     */
+    public long offsetAt(int pos) {
+        return offsets[pos];
+    }
+
+
+    /**
+     * 第pos个单元的数据长度
+     *
+     * @param pos 单元在索引表中的位置
+     * @return 数据长度
+     */
+    public int lengthAt(int pos) {
+        return lengths[pos];
+    }
+
+
+    /**
+     * 第pos个单元的基数
+     *
+     * @param pos 单元在索引表中的位置
+     * @return 单元的基数
+     */
+    public long cardinalityAt(int pos) {
+        return cardinalities[pos];
+    }
+
+
+    /**
+     * 查找指定index的单元在索引表中的位置
+     *
+     * @param key 单元的index
+     * @return 单元在索引表中的位置；不存在时返回负数
+     */
+    public int indexOf(int key) {
+        return Arrays.binarySearch(keys, key);
+    }
+
+
+    /**
+     * 全部单元基数的和，即bitmap的基数
+     *
+     * @return bitmap的基数
+     */
+    public long cardinality() {
+        long c = 0L;
+        for (long x : cardinalities) {
+            c += x;
+        }
+        return c;
+    }
+
+
+    /**
+     * 格式头(包括单元索引表)的字节数，即第一个单元数据的开始位置
+     *
+     * @return 格式头的字节数
+     */
+    public int headerSize() {
+        return FIXED_SIZE + ENTRY_SIZE * keys.length;
+    }
+
+
+    /**
+     * 全部单元数据的字节数
+     *
+     * @return 单元数据的字节数
+     */
+    public long dataSize() {
+        return keys.length == 0 ? 0 : offsets[keys.length - 1] + lengths[keys.length - 1];
+    }
+
+
+    private static void checkVersion(byte version) throws IOException {
+        if (version != SERIAL_VERSION_2) {
+            throw new IOException("Unsupported serial version:[" + version + "].");
+        }
+    }
+
+
+    private static int checkCount(int count, int remaining) throws IOException {
+        if (count < 0 || (long) count * ENTRY_SIZE > remaining) {
+            throw new IOException("Invalid unit count:[" + count + "].");
+        }
+        return count;
+    }
+
+
+    private static ExtBitmapHeader validate(int bits, int[] keys, long[] offsets, int[] lengths, long[] cardinalities)
+            throws IOException {
+        if (bits <= 0 || bits >= Long.SIZE) {
+            throw new IOException("Invalid unit bits:[" + bits + "].");
+        }
+        long expectedOffset = 0L;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] < 0 || (i > 0 && keys[i] <= keys[i - 1])) {
+                throw new IOException("Unit index table is not strictly increasing at:[" + i + "].");
+            }
+            if (offsets[i] != expectedOffset || lengths[i] < 0 || cardinalities[i] < 0) {
+                throw new IOException("Corrupt unit index table entry:[" + i + "].");
+            }
+            expectedOffset += lengths[i];
+        }
+        return new ExtBitmapHeader(bits, keys, offsets, lengths, cardinalities);
+    }
+}
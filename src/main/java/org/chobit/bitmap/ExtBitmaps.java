@@ -0,0 +1,246 @@
+package org.chobit.bitmap;
+
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * 多个ExtRoaringBitmap之间的聚合运算。
+ * <p>
+ * 先将全部bitmap中相同index的unit bitmap分为一组，再将每组交给{@link FastAggregation}一次性完成计算，
+ * 避免两两计算时产生的中间结果。指定{@link ExecutorService}时，各组会并行计算。
+ *
+ * @author robin
+ */
+public final class ExtBitmaps {
+
+
+    private ExtBitmaps() {
+    }
+
+
+    /**
+     * 对多个bitmap做or运算
+     *
+     * @param bitmaps 参与运算的bitmap
+     * @return or运算结果
+     */
+    public static ExtRoaringBitmap or(ExtRoaringBitmap... bitmaps) {
+        return or(Arrays.asList(bitmaps));
+    }
+
+
+    /**
+     * 对多个bitmap做or运算
+     *
+     * @param bitmaps 参与运算的bitmap
+     * @return or运算结果
+     */
+    public static ExtRoaringBitmap or(Iterable<ExtRoaringBitmap> bitmaps) {
+        return or(bitmaps, null);
+    }
+
+
+    /**
+     * 对多个bitmap做or运算，各unit bitmap分组由executor并行计算
+     *
+     * @param bitmaps  参与运算的bitmap
+     * @param executor 用来并行计算的线程池，为null时在当前线程中计算
+     * @return or运算结果
+     */
+    public static ExtRoaringBitmap or(Iterable<ExtRoaringBitmap> bitmaps, ExecutorService executor) {
+        return aggregate(bitmaps, Aggregation.OR, executor);
+    }
+
+
+    /**
+     * 对多个bitmap做and运算
+     *
+     * @param bitmaps 参与运算的bitmap
+     * @return and运算结果
+     */
+    public static ExtRoaringBitmap and(ExtRoaringBitmap... bitmaps) {
+        return and(Arrays.asList(bitmaps));
+    }
+
+
+    /**
+     * 对多个bitmap做and运算
+     *
+     * @param bitmaps 参与运算的bitmap
+     * @return and运算结果
+     */
+    public static ExtRoaringBitmap and(Iterable<ExtRoaringBitmap> bitmaps) {
+        return and(bitmaps, null);
+    }
+
+
+    /**
+     * 对多个bitmap做and运算，各unit bitmap分组由executor并行计算
+     *
+     * @param bitmaps  参与运算的bitmap
+     * @param executor 用来并行计算的线程池，为null时在当前线程中计算
+     * @return and运算结果
+     */
+    public static ExtRoaringBitmap and(Iterable<ExtRoaringBitmap> bitmaps, ExecutorService executor) {
+        return aggregate(bitmaps, Aggregation.AND, executor);
+    }
+
+
+    /**
+     * 对多个bitmap做xor运算
+     *
+     * @param bitmaps 参与运算的bitmap
+     * @return xor运算结果
+     */
+    public static ExtRoaringBitmap xor(ExtRoaringBitmap... bitmaps) {
+        return xor(Arrays.asList(bitmaps));
+    }
+
+
+    /**
+     * 对多个bitmap做xor运算
+     *
+     * @param bitmaps 参与运算的bitmap
+     * @return xor运算结果
+     */
+    public static ExtRoaringBitmap xor(Iterable<ExtRoaringBitmap> bitmaps) {
+        return xor(bitmaps, null);
+    }
+
+
+    /**
+     * 对多个bitmap做xor运算，各unit bitmap分组由executor并行计算
+     *
+     * @param bitmaps  参与运算的bitmap
+     * @param executor 用来并行计算的线程池，为null时在当前线程中计算
+     * @return xor运算结果
+     */
+    public static ExtRoaringBitmap xor(Iterable<ExtRoaringBitmap> bitmaps, ExecutorService executor) {
+        return aggregate(bitmaps, Aggregation.XOR, executor);
+    }
+
+
+    private static ExtRoaringBitmap aggregate(Iterable<ExtRoaringBitmap> bitmaps,
+                                              Aggregation aggregation,
+                                              ExecutorService executor) {
+        List<UnitArray<RoaringUnit>> arrays = new ArrayList<>();
+        for (ExtRoaringBitmap bitmap : bitmaps) {
+            arrays.add(bitmap.units());
+        }
+        List<UnitGroup> groups = group(arrays, aggregation == Aggregation.AND);
+
+        ExtRoaringBitmap result = new ExtRoaringBitmap();
+        if (executor == null) {
+            for (UnitGroup group : groups) {
+                result.putUnit(group.index, group.compute(aggregation));
+            }
+            return result;
+        }
+
+        List<Future<RoaringUnit>> futures = new ArrayList<>(groups.size());
+        for (UnitGroup group : groups) {
+            futures.add(executor.submit(() -> group.compute(aggregation)));
+        }
+        try {
+            for (int i = 0; i < groups.size(); i++) {
+                result.putUnit(groups.get(i).index, futures.get(i).get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while aggregating bitmaps.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to aggregate bitmaps.", e.getCause());
+        }
+        return result;
+    }
+
+
+    /**
+     * 将全部bitmap中相同index的unit bitmap分为一组
+     *
+     * @param arrays     全部bitmap的unit bitmap目录
+     * @param requireAll 是否只保留全部bitmap中都存在的index
+     * @return 按index升序排列的unit bitmap分组
+     */
+    private static List<UnitGroup> group(List<UnitArray<RoaringUnit>> arrays, boolean requireAll) {
+        List<UnitGroup> groups = new ArrayList<>();
+        if (arrays.isEmpty()) {
+            return groups;
+        }
+        int[] pos = new int[arrays.size()];
+        while (true) {
+            long minKey = Long.MAX_VALUE;
+            for (int i = 0; i < arrays.size(); i++) {
+                if (pos[i] < arrays.get(i).size()) {
+                    minKey = Math.min(minKey, arrays.get(i).keyAt(pos[i]));
+                } else if (requireAll) {
+                    return groups;
+                }
+            }
+            if (minKey == Long.MAX_VALUE) {
+                return groups;
+            }
+            List<RoaringUnit> members = new ArrayList<>(arrays.size());
+            for (int i = 0; i < arrays.size(); i++) {
+                UnitArray<RoaringUnit> array = arrays.get(i);
+                if (pos[i] < array.size() && array.keyAt(pos[i]) == minKey) {
+                    members.add(array.unitAt(pos[i]));
+                    pos[i]++;
+                }
+            }
+            if (!requireAll || members.size() == arrays.size()) {
+                groups.add(new UnitGroup((int) minKey, members));
+            }
+        }
+    }
+
+
+    private enum Aggregation {
+        AND, OR, XOR
+    }
+
+
+    /**
+     * 相同index上的一组unit bitmap
+     */
+    private static final class UnitGroup {
+
+        private final int index;
+
+        private final List<RoaringUnit> members;
+
+        private UnitGroup(int index, List<RoaringUnit> members) {
+            this.index = index;
+            this.members = members;
+        }
+
+        private RoaringUnit compute(Aggregation aggregation) {
+            RoaringBitmap[] bitmaps = new RoaringBitmap[members.size()];
+            long minSize = Long.MAX_VALUE;
+            long maxSize = 0;
+            for (int i = 0; i < bitmaps.length; i++) {
+                RoaringUnit unit = members.get(i);
+                bitmaps[i] = unit.bitmap();
+                minSize = Math.min(minSize, unit.size());
+                maxSize = Math.max(maxSize, unit.size());
+            }
+            switch (aggregation) {
+                case AND:
+                    return new RoaringUnit(FastAggregation.and(bitmaps), minSize);
+                case OR:
+                    return new RoaringUnit(FastAggregation.horizontal_or(bitmaps), maxSize);
+                case XOR:
+                    return new RoaringUnit(FastAggregation.xor(bitmaps), maxSize);
+                default:
+                    throw new IllegalStateException("Unknown aggregation: " + aggregation);
+            }
+        }
+    }
+}
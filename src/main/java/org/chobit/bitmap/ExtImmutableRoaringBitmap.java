@@ -0,0 +1,341 @@
+package org.chobit.bitmap;
+
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 只读的扩展RoaringBitmap，直接基于ExtRoaringBitmap的序列化数据(如内存映射文件)工作。
+ * <p>
+ * 打开时只解析格式头及单元索引表，各单元在第一次访问时才基于原始ByteBuffer创建{@link ImmutableRoaringBitmap}视图，
+ * 数据不会被复制到堆上。集合运算的结果为堆上的{@link ExtRoaringBitmap}。
+ *
+ * @author robin
+ */
+public final class ExtImmutableRoaringBitmap {
+
+
+    private final ByteBuffer buffer;
+
+    private final ExtBitmapHeader header;
+
+    private final AtomicReferenceArray<ImmutableRoaringUnit> units;
+
+
+    /**
+     * 基于buffer当前位置开始的序列化数据创建只读bitmap，不会修改buffer的position
+     *
+     * @param buffer ExtRoaringBitmap的序列化数据
+     * @throws IOException 数据不是有效的ExtRoaringBitmap序列化数据
+     */
+    public ExtImmutableRoaringBitmap(ByteBuffer buffer) throws IOException {
+        this.header = ExtBitmapHeader.read(buffer);
+        if (header.unitBits() != RoaringUnit.UNIT_BITS) {
+            throw new IOException("Unit bits of serialized data:[" + header.unitBits() + "] does not match:[" + RoaringUnit.UNIT_BITS + "].");
+        }
+        if (header.headerSize() + header.dataSize() > buffer.remaining()) {
+            throw new IOException("Serialized data is truncated.");
+        }
+        this.buffer = buffer.slice();
+        this.units = new AtomicReferenceArray<>(header.unitCount());
+    }
+
+
+    /**
+     * 以只读方式将文件映射到内存，并基于映射的数据创建只读bitmap
+     * <p>
+     * 文件大小不能超过Integer.MAX_VALUE字节
+     *
+     * @param path ExtRoaringBitmap序列化数据文件
+     * @return 只读bitmap
+     * @throws IOException
+     */
+    public static ExtImmutableRoaringBitmap map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new ExtImmutableRoaringBitmap(buffer);
+        }
+    }
+
+
+    /**
+     * 检查bitmap指定位置是否为true
+     *
+     * @param offset bitmap上的指定位置
+     * @return 如果bitmap中的该bit位已经设置有值则为true，反之为false
+     */
+    public boolean check(long offset) {
+        if (offset < 0) {
+            return false;
+        }
+        int pos = indexOf(offset >>> RoaringUnit.UNIT_BITS);
+        return pos >= 0 && unitAt(pos).check(offset & (RoaringUnit.maxSize() - 1));
+    }
+
+
+    /**
+     * bitmap中值的总数，直接读取自单元索引表
+     *
+     * @return bitmap中值的总数
+     */
+    public long cardinality() {
+        return header.cardinality();
+    }
+
+
+    /**
+     * 获取bitmap中第一个(最小的)值
+     *
+     * @return bitmap中第一个(最小的)值，bitmap为空则返回-1
+     */
+    public long first() {
+        for (int i = 0; i < unitsLength(); i++) {
+            long firstInUnit = unitAt(i).first();
+            if (firstInUnit != -1) {
+                return unitBase(i) + firstInUnit;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * 获取bitmap中最后一个(最大的)值
+     *
+     * @return bitmap中最后一个(最大的)值，bitmap为空则返回-1
+     */
+    public long last() {
+        for (int i = unitsLength() - 1; i >= 0; i--) {
+            long lastInUnit = unitAt(i).last();
+            if (lastInUnit != -1) {
+                return unitBase(i) + lastInUnit;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * 当前bitmap与其他bitmap做and运算后的结果
+     *
+     * @param other 其他bitmap
+     * @return 堆上的运算结果
+     */
+    public ExtRoaringBitmap and(ExtImmutableRoaringBitmap other) {
+        return compute(other, Operation.AND);
+    }
+
+
+    /**
+     * 当前bitmap与其他bitmap做or运算后的结果
+     *
+     * @param other 其他bitmap
+     * @return 堆上的运算结果
+     */
+    public ExtRoaringBitmap or(ExtImmutableRoaringBitmap other) {
+        return compute(other, Operation.OR);
+    }
+
+
+    /**
+     * 当前bitmap与其他bitmap做xor运算后的结果
+     *
+     * @param other 其他bitmap
+     * @return 堆上的运算结果
+     */
+    public ExtRoaringBitmap xor(ExtImmutableRoaringBitmap other) {
+        return compute(other, Operation.XOR);
+    }
+
+
+    /**
+     * 当前bitmap与其他bitmap做andNot(即差集计算)运算后的结果
+     *
+     * @param other 其他bitmap
+     * @return 堆上的运算结果
+     */
+    public ExtRoaringBitmap andNot(ExtImmutableRoaringBitmap other) {
+        return compute(other, Operation.AND_NOT);
+    }
+
+
+    /**
+     * 将全部数据复制到堆上的ExtRoaringBitmap中
+     *
+     * @return 堆上的bitmap
+     */
+    public ExtRoaringBitmap toExtRoaringBitmap() {
+        ExtRoaringBitmap result = new ExtRoaringBitmap();
+        for (int i = 0; i < unitsLength(); i++) {
+            result.putUnit(header.keyAt(i), unitAt(i).toRoaringUnit());
+        }
+        return result;
+    }
+
+
+    /**
+     * 序列化数据的格式头
+     *
+     * @return 格式头
+     */
+    public ExtBitmapHeader header() {
+        return header;
+    }
+
+
+    /**
+     * 单元数量
+     *
+     * @return 单元数量
+     */
+    public int unitsLength() {
+        return header.unitCount();
+    }
+
+
+    /**
+     * bitmap元素iterator
+     *
+     * @return bitmap元素iterator
+     */
+    public LongIterator longIterator() {
+        return new LongIterator() {
+
+            private int pos = 0;
+            private LongIterator itr;
+
+            @Override
+            public boolean hasNext() {
+                while (true) {
+                    if (pos >= unitsLength()) {
+                        return false;
+                    }
+                    if (itr == null) {
+                        itr = unitAt(pos).longIterator();
+                    }
+                    if (itr.hasNext()) {
+                        return true;
+                    } else {
+                        itr = null;
+                        pos++;
+                    }
+                }
+            }
+
+            @Override
+            public long next() {
+                return itr.next() + unitBase(pos);
+            }
+        };
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("[");
+        LongIterator itr = longIterator();
+        while (itr.hasNext()) {
+            if (builder.length() > 1) {
+                builder.append(",");
+            }
+            builder.append(itr.next());
+            if (builder.length() > 300 && itr.hasNext()) {
+                return builder.append("...]").toString();
+            }
+        }
+        builder.append("]");
+        builder.insert(0, getClass().getSimpleName());
+        return builder.toString();
+    }
+
+
+    private ExtRoaringBitmap compute(ExtImmutableRoaringBitmap o, Operation operation) {
+        boolean keepLeft = operation != Operation.AND;
+        boolean keepRight = operation == Operation.OR || operation == Operation.XOR;
+        ExtRoaringBitmap result = new ExtRoaringBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < this.unitsLength() && j < o.unitsLength()) {
+            int k1 = this.header.keyAt(i);
+            int k2 = o.header.keyAt(j);
+            if (k1 == k2) {
+                result.putUnit(k1, operation.apply(this.unitAt(i++), o.unitAt(j++)));
+            } else if (k1 < k2) {
+                if (keepLeft) {
+                    result.putUnit(k1, this.unitAt(i).toRoaringUnit());
+                }
+                i++;
+            } else {
+                if (keepRight) {
+                    result.putUnit(k2, o.unitAt(j).toRoaringUnit());
+                }
+                j++;
+            }
+        }
+        while (keepLeft && i < this.unitsLength()) {
+            result.putUnit(this.header.keyAt(i), this.unitAt(i++).toRoaringUnit());
+        }
+        while (keepRight && j < o.unitsLength()) {
+            result.putUnit(o.header.keyAt(j), o.unitAt(j++).toRoaringUnit());
+        }
+        return result;
+    }
+
+
+    private int indexOf(long index) {
+        return index > Integer.MAX_VALUE ? -1 : header.indexOf((int) index);
+    }
+
+
+    private long unitBase(int pos) {
+        return ((long) header.keyAt(pos)) << RoaringUnit.UNIT_BITS;
+    }
+
+
+    /**
+     * 获取索引表中第pos项对应的单元，第一次访问时基于原始数据创建只读视图
+     *
+     * @param pos 单元在索引表中的位置
+     * @return 只读单元
+     */
+    private ImmutableRoaringUnit unitAt(int pos) {
+        ImmutableRoaringUnit unit = units.get(pos);
+        if (unit == null) {
+            ByteBuffer slice = buffer.duplicate();
+            int start = (int) (header.headerSize() + header.offsetAt(pos));
+            slice.position(start);
+            slice.limit(start + header.lengthAt(pos));
+            unit = new ImmutableRoaringUnit(new ImmutableRoaringBitmap(slice.slice()));
+            units.compareAndSet(pos, null, unit);
+        }
+        return unit;
+    }
+
+
+    private enum Operation {
+
+        AND, OR, XOR, AND_NOT;
+
+        RoaringUnit apply(ImmutableRoaringUnit u1, ImmutableRoaringUnit u2) {
+            switch (this) {
+                case AND:
+                    return u1.and(u2);
+                case OR:
+                    return u1.or(u2);
+                case XOR:
+                    return u1.xor(u2);
+                case AND_NOT:
+                    return u1.andNot(u2);
+                default:
+                    throw new IllegalStateException("Unknown operation: " + this);
+            }
+        }
+    }
+}
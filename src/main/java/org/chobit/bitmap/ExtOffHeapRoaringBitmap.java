@@ -0,0 +1,126 @@
+package org.chobit.bitmap;
+
+import java.io.Closeable;
+
+/**
+ * 数据保存在堆外内存中的扩展bitmap，子单元为{@link OffHeapRoaringUnit}。
+ * <p>
+ * 序列化格式与{@link ExtRoaringBitmap}相同。不再使用时应调用{@link #close()}立即释放全部子单元的堆外内存。
+ * 运算中的临时子单元及被替换、被丢弃的子单元会被立即关闭；与快照共享的子单元按持有者计数，
+ * 当前bitmap及其快照都关闭后才释放。
+ *
+ * @author robin
+ */
+public class ExtOffHeapRoaringBitmap extends AbstractExtBitmap<ExtOffHeapRoaringBitmap, OffHeapRoaringUnit>
+        implements Closeable {
+
+
+    private boolean closed;
+
+    public ExtOffHeapRoaringBitmap() {
+        super();
+    }
+
+
+    private ExtOffHeapRoaringBitmap(UnitArray<OffHeapRoaringUnit> units) {
+        super(units);
+    }
+
+
+    /**
+     * 全部OffHeapRoaringUnit当前持有的堆外内存字节数
+     *
+     * @return 堆外内存字节数
+     */
+    public static long totalOffHeapBytes() {
+        return OffHeapRoaringUnit.offHeapBytes();
+    }
+
+
+    /**
+     * 当前bitmap持有的堆外内存字节数
+     *
+     * @return 堆外内存字节数
+     */
+    public long offHeapSizeInBytes() {
+        UnitArray<OffHeapRoaringUnit> units = units();
+        long bytes = 0L;
+        for (int i = 0; i < units.size(); i++) {
+            bytes += units.unitAt(i).offHeapSizeInBytes();
+        }
+        return bytes;
+    }
+
+
+    /**
+     * 将全部子单元堆上的增量修改合并写回堆外
+     */
+    public void flush() {
+        UnitArray<OffHeapRoaringUnit> units = units();
+        for (int i = 0; i < units.size(); i++) {
+            units.unitAt(i).flush();
+        }
+    }
+
+
+    /**
+     * 创建快照前先将全部子单元的增量修改合并写回堆外。
+     * <p>
+     * 子单元的读取操作在有未合并的增量修改时会先合并写回，共享的子单元若带有增量修改，
+     * 快照与当前bitmap的并发读取就会同时修改同一个子单元。合并后共享的子单元不再有增量修改，
+     * 任何一方的写入都会先复制子单元，读取操作不会再修改共享的子单元
+     *
+     * @return 当前bitmap的快照
+     */
+    @Override
+    public ExtOffHeapRoaringBitmap snapshot() {
+        flush();
+        return super.snapshot();
+    }
+
+
+    /**
+     * 立即释放全部子单元的堆外内存。关闭后不能再使用当前bitmap，重复调用不会产生任何效果
+     * <p>
+     * 仍与快照(见{@link #snapshot()})共享的子单元在快照也关闭后才释放
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        UnitArray<OffHeapRoaringUnit> units = units();
+        for (int i = 0; i < units.size(); i++) {
+            units.unitAt(i).close();
+        }
+    }
+
+
+    @Override
+    protected int unitBits() {
+        return RoaringUnit.UNIT_BITS;
+    }
+
+    @Override
+    protected ExtOffHeapRoaringBitmap combine(UnitArray<OffHeapRoaringUnit> units) {
+        return new ExtOffHeapRoaringBitmap(units);
+    }
+
+    @Override
+    protected OffHeapRoaringUnit newUnit() {
+        return new OffHeapRoaringUnit();
+    }
+
+    @Override
+    protected void retainUnit(OffHeapRoaringUnit unit) {
+        unit.retain();
+    }
+
+    @Override
+    protected void releaseUnit(OffHeapRoaringUnit unit) {
+        unit.close();
+    }
+
+
+}
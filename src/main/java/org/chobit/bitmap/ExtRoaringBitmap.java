@@ -1,7 +1,5 @@
 package org.chobit.bitmap;
 
-import java.util.List;
-
 /**
  * @author robin
  */
@@ -13,18 +11,18 @@ public class ExtRoaringBitmap extends AbstractExtBitmap<ExtRoaringBitmap, Roarin
     }
 
 
-    private ExtRoaringBitmap(List<RoaringUnit> units) {
+    private ExtRoaringBitmap(UnitArray<RoaringUnit> units) {
         super(units);
     }
 
 
     @Override
-    protected long maxUnitSize() {
-        return RoaringUnit.maxSize();
+    protected int unitBits() {
+        return RoaringUnit.UNIT_BITS;
     }
 
     @Override
-    protected ExtRoaringBitmap combine(List<RoaringUnit> units) {
+    protected ExtRoaringBitmap combine(UnitArray<RoaringUnit> units) {
         return new ExtRoaringBitmap(units);
     }
 
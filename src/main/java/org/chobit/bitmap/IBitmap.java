@@ -4,6 +4,14 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.Externalizable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
 
 /**
  * Bitmap接口
@@ -29,6 +37,24 @@ public interface IBitmap<T extends IBitmap<T>> extends Externalizable {
     void remove(final long offset);
 
 
+    /**
+     * 添加长整型值到当前bitmap中，并返回bitmap是否发生了变化
+     *
+     * @param offset 长整型值，对应bitmap上的位置
+     * @return 该值原来不在bitmap中则返回true
+     */
+    boolean checkedAdd(final long offset);
+
+
+    /**
+     * 从当前bitmap中移除指定的值，并返回bitmap是否发生了变化
+     *
+     * @param offset 长整型值，对应bitmap上的位置
+     * @return 该值原来在bitmap中则返回true
+     */
+    boolean checkedRemove(final long offset);
+
+
     /**
      * 将指定区间 [rangeStart, rangeEndExclusive]内的全部值添加到bitmap中。区间两端的值均包含在内。
      *
@@ -56,6 +82,49 @@ public interface IBitmap<T extends IBitmap<T>> extends Externalizable {
     boolean check(final long offset);
 
 
+    /**
+     * 批量添加长整型值到当前bitmap中，值有序时效率最高
+     *
+     * @param values 长整型值数组
+     * @param from   起始下标(包含)
+     * @param to     结束下标(不包含)
+     */
+    void addMany(final long[] values, final int from, final int to);
+
+
+    /**
+     * 批量添加值到当前bitmap中，int值按无符号整型处理，即对应[0, 2^32)上的位置，值有序时效率最高。
+     * 默认逐个调用{@link #add(long)}
+     *
+     * @param values 按无符号整型处理的值数组
+     * @param from   起始下标(包含)
+     * @param to     结束下标(不包含)
+     */
+    default void addMany(final int[] values, final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            add(Integer.toUnsignedLong(values[i]));
+        }
+    }
+
+
+    /**
+     * 批量检查bitmap指定位置是否为true
+     *
+     * @param values  bitmap上的位置
+     * @param results 检查结果，results[i]对应values[i]，长度不能小于values
+     */
+    void checkMany(final long[] values, final boolean[] results);
+
+
+    /**
+     * 检查指定的值是否全部在当前bitmap中
+     *
+     * @param values bitmap上的位置
+     * @return 全部值都已经设置则为true，反之为false
+     */
+    boolean containsAll(final long[] values);
+
+
     /**
      * 当前bitmap与其他bitmap做and运算后的结果
      *
@@ -92,6 +161,83 @@ public interface IBitmap<T extends IBitmap<T>> extends Externalizable {
     T andNot(T other);
 
 
+    /**
+     * 当前bitmap与其他bitmap做and运算，结果直接写入当前bitmap
+     *
+     * @param other 其他bitmap，不会被修改
+     */
+    void andInPlace(T other);
+
+
+    /**
+     * 当前bitmap与其他bitmap做or运算，结果直接写入当前bitmap
+     *
+     * @param other 其他bitmap，不会被修改
+     */
+    void orInPlace(T other);
+
+
+    /**
+     * 当前bitmap与其他bitmap做xor运算，结果直接写入当前bitmap
+     *
+     * @param other 其他bitmap，不会被修改
+     */
+    void xorInPlace(T other);
+
+
+    /**
+     * 当前bitmap与其他bitmap做andNot运算(即差集计算)，结果直接写入当前bitmap
+     *
+     * @param other 其他bitmap，不会被修改
+     */
+    void andNotInPlace(T other);
+
+
+    /**
+     * 当前bitmap与其他bitmap做and运算后结果的基数，不会生成运算结果
+     *
+     * @param other 其他bitmap
+     * @return and运算结果中值的总数
+     */
+    long andCardinality(T other);
+
+
+    /**
+     * 当前bitmap与其他bitmap做or运算后结果的基数，不会生成运算结果
+     *
+     * @param other 其他bitmap
+     * @return or运算结果中值的总数
+     */
+    long orCardinality(T other);
+
+
+    /**
+     * 当前bitmap与其他bitmap做xor运算后结果的基数，不会生成运算结果
+     *
+     * @param other 其他bitmap
+     * @return xor运算结果中值的总数
+     */
+    long xorCardinality(T other);
+
+
+    /**
+     * 当前bitmap与其他bitmap做andNot运算后结果的基数，不会生成运算结果
+     *
+     * @param other 其他bitmap
+     * @return andNot运算结果中值的总数
+     */
+    long andNotCardinality(T other);
+
+
+    /**
+     * 检查当前bitmap与其他bitmap是否有交集
+     *
+     * @param other 其他bitmap
+     * @return 有交集则为true，反之为false
+     */
+    boolean intersects(T other);
+
+
     /**
      * 当前bitmap做not运算后的结果。谨慎使用。
      *
@@ -116,13 +262,50 @@ public interface IBitmap<T extends IBitmap<T>> extends Externalizable {
     long last();
 
     /**
-     * 评估当前数据结构的内存使用量
+     * bitmap的逻辑长度，即最大的值加1(通过{@link #extend(long)}扩展后可能更大)。与内存使用量无关，内存使用量见{@link #getSizeInBytes()}
      *
-     * @return 估计的内存使用量
+     * @return bitmap的逻辑长度
      */
     long size();
 
 
+    /**
+     * bitmap中小于等于x的值的数量
+     *
+     * @param x 长整型值
+     * @return 小于等于x的值的数量
+     */
+    long rank(final long x);
+
+
+    /**
+     * 获取bitmap中第j个(从0开始)最小的值
+     *
+     * @param j 值的序号，范围为[0, cardinality())
+     * @return 第j个最小的值
+     * @throws IllegalArgumentException j超出范围
+     */
+    long select(final long j);
+
+
+    /**
+     * bitmap中在区间 [rangeStart, rangeEndExclusive) 内的值的数量
+     *
+     * @param rangeStart        区间开始位置(包含)
+     * @param rangeEndExclusive 区间结束位置(不包含)
+     * @return 区间内的值的数量
+     */
+    long rangeCardinality(final long rangeStart, final long rangeEndExclusive);
+
+
+    /**
+     * 评估当前数据结构实际占用的内存字节数，包括各层对象及数组的开销
+     *
+     * @return 估计的内存字节数
+     */
+    long getSizeInBytes();
+
+
     /**
      * 添加到bitmap的长整型值的总数
      *
@@ -148,6 +331,29 @@ public interface IBitmap<T extends IBitmap<T>> extends Externalizable {
     T copy();
 
 
+    /**
+     * 对bitmap的存储结构做优化，将适合的部分转为run-length编码。
+     * 序列化等只读操作不会修改存储结构，需要时应在写入完成后显式调用
+     *
+     * @return 存储结构发生变化则返回true
+     */
+    boolean runOptimize();
+
+
+    /**
+     * 释放bitmap内部预留的多余容量
+     */
+    void trim();
+
+
+    /**
+     * 当前bitmap序列化后的字节数
+     *
+     * @return 序列化后的字节数
+     */
+    long serializedSizeInBytes();
+
+
     /**
      * 序列化当前bitmap到输出流
      *
@@ -185,10 +391,149 @@ public interface IBitmap<T extends IBitmap<T>> extends Externalizable {
     T fromBytes(byte[] bytes) throws IOException;
 
 
+    /**
+     * 将当前bitmap序列化后写入channel，格式与{@link #serialize(DataOutput)}相同。
+     * 数据经由一个按照序列化大小分配的buffer分批写出，不会在内存中生成完整的序列化数据。
+     * 频繁调用时应使用{@link #writeTo(WritableByteChannel, ByteBuffer)}并重用direct buffer
+     *
+     * @param channel 输出channel
+     * @throws IOException
+     */
+    default void writeTo(WritableByteChannel channel) throws IOException {
+        writeTo(channel, ChannelDataOutput.allocate(serializedSizeInBytes()));
+    }
+
+
+    /**
+     * 使用指定的buffer将当前bitmap序列化后写入channel，buffer可以在多次调用之间重用
+     *
+     * @param channel 输出channel
+     * @param buffer  写出时使用的buffer，容量不能小于8
+     * @throws IOException
+     */
+    default void writeTo(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        ChannelDataOutput out = new ChannelDataOutput(channel, buffer);
+        serialize(out);
+        out.flush();
+    }
+
+
+    /**
+     * 从channel中读取序列化数据到当前bitmap，格式与{@link #deserialize(DataInput)}相同。
+     * <p>
+     * 读取时可能会从channel中预读数据，channel为{@link java.nio.channels.SeekableByteChannel}时，
+     * 读取完成后其position会退回到bitmap数据的结束位置。
+     * 每次调用都会分配一个堆上buffer，频繁调用时应使用{@link #readFrom(ReadableByteChannel, ByteBuffer)}并重用direct buffer
+     *
+     * @param channel 输入channel
+     * @throws IOException
+     */
+    default void readFrom(ReadableByteChannel channel) throws IOException {
+        readFrom(channel, ByteBuffer.allocate(ChannelDataOutput.DEFAULT_BUFFER_SIZE));
+    }
+
+
+    /**
+     * 使用指定的buffer从channel中读取序列化数据到当前bitmap，buffer可以在多次调用之间重用
+     *
+     * @param channel 输入channel
+     * @param buffer  读取时使用的buffer，容量不能小于8
+     * @throws IOException
+     */
+    default void readFrom(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        ChannelDataInput in = new ChannelDataInput(channel, buffer);
+        try {
+            deserialize(in);
+        } finally {
+            in.release();
+        }
+    }
+
+
     /**
      * bitmap元素iterator
      *
      * @return bitmap元素iterator
      */
     LongIterator longIterator();
+
+
+    /**
+     * 可以查看下一个值并跳过较小值的bitmap元素iterator
+     *
+     * @return bitmap元素iterator
+     */
+    PeekableLongIterator peekableLongIterator();
+
+
+    /**
+     * 区间 [from, to) 内的bitmap元素iterator，先跳过小于from的值，遇到不小于to的值即结束
+     *
+     * @param from 区间开始位置(包含)
+     * @param to   区间结束位置(不包含)
+     * @return 区间内元素的iterator
+     */
+    default LongIterator longIterator(final long from, final long to) {
+        final PeekableLongIterator itr = peekableLongIterator();
+        itr.advanceIfNeeded(from);
+        return new LongIterator() {
+            @Override
+            public boolean hasNext() {
+                return itr.hasNext() && itr.peekNext() < to;
+            }
+
+            @Override
+            public long next() {
+                return itr.next();
+            }
+        };
+    }
+
+
+    /**
+     * 从大到小遍历bitmap元素的iterator
+     *
+     * @return bitmap元素iterator
+     */
+    LongIterator reverseLongIterator();
+
+
+    /**
+     * 批量读取bitmap元素的iterator，大批量导出时比逐个调用{@link LongIterator#next()}开销更小
+     *
+     * @return 批量iterator
+     */
+    LongBatchIterator batchIterator();
+
+
+    /**
+     * 按从小到大的顺序对每个元素执行action
+     *
+     * @param action 对元素执行的操作
+     */
+    void forEach(LongConsumer action);
+
+
+    /**
+     * bitmap元素的Spliterator，可在unit bitmap及container边界上拆分，元素数量是精确的。遍历期间bitmap不能被修改
+     *
+     * @return bitmap元素的Spliterator
+     */
+    default Spliterator.OfLong spliterator() {
+        long first = first();
+        if (first < 0) {
+            return Spliterators.emptyLongSpliterator();
+        }
+        return new BitmapSpliterator(this, first, last(), cardinality());
+    }
+
+
+    /**
+     * bitmap元素组成的LongStream，调用{@link LongStream#parallel()}后可并行处理
+     *
+     * @return bitmap元素的LongStream
+     */
+    default LongStream stream() {
+        return StreamSupport.longStream(spliterator(), false);
+    }
 }
@@ -0,0 +1,137 @@
+package org.chobit.bitmap;
+
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+
+/**
+ * 对{@link ImmutableRoaringBitmap}的封装，作为ExtImmutableRoaringBitmap的只读子单元。
+ * <p>
+ * 数据直接读取自外部的ByteBuffer(如内存映射文件)，不会复制到堆上。运算结果为堆上的{@link RoaringUnit}。
+ *
+ * @author robin
+ */
+public final class ImmutableRoaringUnit {
+
+
+    private final ImmutableRoaringBitmap bitmap;
+
+
+    public ImmutableRoaringUnit(ImmutableRoaringBitmap bitmap) {
+        this.bitmap = bitmap;
+    }
+
+
+    /**
+     * 检查bitmap指定位置是否为true
+     *
+     * @param offset bitmap上的指定位置
+     * @return 如果bitmap中的该bit位已经设置有值则为true，反之为false
+     */
+    public boolean check(long offset) {
+        return offset >= 0 && offset < RoaringUnit.maxSize() && bitmap.contains((int) offset);
+    }
+
+
+    /**
+     * bitmap中值的总数
+     *
+     * @return bitmap中值的总数
+     */
+    public long cardinality() {
+        return bitmap.getLongCardinality();
+    }
+
+
+    /**
+     * 获取bitmap中第一个(最小的)值
+     *
+     * @return bitmap中第一个(最小的)值，bitmap为空则返回-1
+     */
+    public long first() {
+        return bitmap.isEmpty() ? -1 : Integer.toUnsignedLong(bitmap.first());
+    }
+
+
+    /**
+     * 获取bitmap中最后一个(最大的)值
+     *
+     * @return bitmap中最后一个(最大的)值，bitmap为空则返回-1
+     */
+    public long last() {
+        return bitmap.isEmpty() ? -1 : Integer.toUnsignedLong(bitmap.last());
+    }
+
+
+    /**
+     * 当前bitmap与其他bitmap做and运算后的结果
+     *
+     * @param other 其他bitmap
+     * @return 堆上的运算结果
+     */
+    public RoaringUnit and(ImmutableRoaringUnit other) {
+        return new RoaringUnit(ImmutableRoaringBitmap.and(this.bitmap, other.bitmap).toRoaringBitmap());
+    }
+
+
+    /**
+     * 当前bitmap与其他bitmap做or运算后的结果
+     *
+     * @param other 其他bitmap
+     * @return 堆上的运算结果
+     */
+    public RoaringUnit or(ImmutableRoaringUnit other) {
+        return new RoaringUnit(ImmutableRoaringBitmap.or(this.bitmap, other.bitmap).toRoaringBitmap());
+    }
+
+
+    /**
+     * 当前bitmap与其他bitmap做xor运算后的结果
+     *
+     * @param other 其他bitmap
+     * @return 堆上的运算结果
+     */
+    public RoaringUnit xor(ImmutableRoaringUnit other) {
+        return new RoaringUnit(ImmutableRoaringBitmap.xor(this.bitmap, other.bitmap).toRoaringBitmap());
+    }
+
+
+    /**
+     * 当前bitmap与其他bitmap做andNot(即差集计算)运算后的结果
+     *
+     * @param other 其他bitmap
+     * @return 堆上的运算结果
+     */
+    public RoaringUnit andNot(ImmutableRoaringUnit other) {
+        return new RoaringUnit(ImmutableRoaringBitmap.andNot(this.bitmap, other.bitmap).toRoaringBitmap());
+    }
+
+
+    /**
+     * 将bitmap复制到堆上
+     *
+     * @return 堆上的bitmap单元
+     */
+    public RoaringUnit toRoaringUnit() {
+        return new RoaringUnit(bitmap.toRoaringBitmap());
+    }
+
+
+    /**
+     * bitmap元素iterator
+     *
+     * @return bitmap元素iterator
+     */
+    public LongIterator longIterator() {
+        return new UnsignedPeekableIterator(bitmap.getIntIterator());
+    }
+
+
+    ImmutableRoaringBitmap bitmap() {
+        return bitmap;
+    }
+
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + bitmap.toString();
+    }
+}
@@ -0,0 +1,40 @@
+package org.chobit.bitmap;
+
+/**
+ * 批量读取bitmap数值的iterator，每次将多个值写入调用方提供的数组，用于大批量导出
+ *
+ * @author robin
+ */
+public interface LongBatchIterator {
+
+
+    /**
+     * 判断有无下一批值
+     *
+     * @return true 有值, false 无值
+     */
+    boolean hasNext();
+
+
+    /**
+     * 读取下一批值，填满buffer或读完全部值为止
+     *
+     * @param buffer 写入数值的数组
+     * @return 写入的数值个数，没有更多的值时返回0
+     */
+    default int nextBatch(long[] buffer) {
+        return nextBatch(buffer, 0, buffer.length);
+    }
+
+
+    /**
+     * 读取下一批值，写入buffer中 [offset, offset + length) 的位置
+     *
+     * @param buffer 写入数值的数组
+     * @param offset 开始写入的位置
+     * @param length 最多写入的数值个数
+     * @return 写入的数值个数，没有更多的值时返回0
+     */
+    int nextBatch(long[] buffer, int offset, int length);
+
+}
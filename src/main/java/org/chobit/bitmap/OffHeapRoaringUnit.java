@@ -0,0 +1,893 @@
+package org.chobit.bitmap;
+
+import org.roaringbitmap.IntConsumer;
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+import org.roaringbitmap.buffer.MappeableContainerPointer;
+import org.roaringbitmap.buffer.MutableRoaringBitmap;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * 堆外的bitmap单元，主要用来作为ExtOffHeapRoaringBitmap的子单元。
+ * <p>
+ * bitmap的数据以RoaringBitmap的序列化格式保存在direct ByteBuffer中，读取时通过{@link ImmutableRoaringBitmap}视图直接访问。
+ * 写入操作(包括区间及批量写入)先记录在堆上的增量bitmap(added/removed)中，增量占用的内存超过堆外数据的1/8(至少64KB)时，
+ * 或者调用{@link #flush()}、{@link #runOptimize()}时，才合并写回堆外。
+ * 每次合并都要重写整个单元，按比例设置的阈值使合并的开销分摊到每次写入上是常数级的。
+ * <p>
+ * 读取操作不会合并写回，有增量修改时在堆上合并出完整数据后读取，因此读取不会替换或释放堆外内存。
+ * <p>
+ * 合并后被替换的堆外内存在没有iterator使用时立即释放；未遍历完即被丢弃的iterator所引用的堆外内存交由GC回收。
+ * 不再使用时应调用{@link #close()}释放堆外内存，关闭后不能再使用该单元；关闭前创建的iterator仍可以遍历完，
+ * 其引用的堆外内存在遍历结束后释放。
+ *
+ * @author robin
+ */
+public class OffHeapRoaringUnit implements IBitmap<OffHeapRoaringUnit>, Closeable {
+
+
+    /**
+     * 每累计该数量的增量修改，检查一次增量占用的内存是否达到合并阈值
+     */
+    private static final int CHECK_INTERVAL = 4096;
+
+    /**
+     * 增量占用内存的最小合并阈值
+     */
+    private static final long MIN_DELTA_BYTES = 64 * 1024;
+
+    /**
+     * 增量占用的内存超过堆外数据的 1/2^DELTA_RATIO_SHIFT 时合并写回堆外
+     */
+    private static final int DELTA_RATIO_SHIFT = 3;
+
+    /**
+     * 全部OffHeapRoaringUnit持有的堆外内存字节数
+     */
+    private static final AtomicLong OFF_HEAP_BYTES = new AtomicLong();
+
+
+    private ByteBuffer buffer;
+
+    private Generation generation;
+
+    private ImmutableRoaringBitmap base;
+
+    private final MutableRoaringBitmap added = new MutableRoaringBitmap();
+
+    private final MutableRoaringBitmap removed = new MutableRoaringBitmap();
+
+    /**
+     * 合并了增量修改的堆上完整数据，只用于读取，下一次修改后置为null
+     */
+    private volatile MutableRoaringBitmap merged;
+
+    private long pending;
+
+    private long nextCheck = CHECK_INTERVAL;
+
+    private long size;
+
+    /**
+     * 持有当前单元的bitmap数量，单元被快照共享时大于1
+     */
+    private final AtomicInteger owners = new AtomicInteger(1);
+
+
+    public OffHeapRoaringUnit() {
+        this(new MutableRoaringBitmap(), 0);
+    }
+
+
+    public OffHeapRoaringUnit(MutableRoaringBitmap bitmap, long size) {
+        store(bitmap);
+        this.size = size;
+    }
+
+
+    /**
+     * 全部OffHeapRoaringUnit当前持有的堆外内存字节数
+     *
+     * @return 堆外内存字节数
+     */
+    public static long offHeapBytes() {
+        return OFF_HEAP_BYTES.get();
+    }
+
+
+    /**
+     * 当前单元持有的堆外内存字节数
+     *
+     * @return 堆外内存字节数
+     */
+    public long offHeapSizeInBytes() {
+        return buffer == null ? 0 : buffer.capacity();
+    }
+
+
+    @Override
+    public void add(long offset) {
+        checkedAdd(offset);
+    }
+
+    @Override
+    public void remove(long offset) {
+        checkedRemove(offset);
+    }
+
+    @Override
+    public boolean checkedAdd(long offset) {
+        int x = castToInteger(offset);
+        ensureOpen();
+        extend(offset + 1L);
+        boolean changed = base.contains(x) ? removed.checkedRemove(x) : added.checkedAdd(x);
+        if (changed) {
+            mutated(1);
+        }
+        return changed;
+    }
+
+    @Override
+    public boolean checkedRemove(long offset) {
+        int x = castToInteger(offset);
+        ensureOpen();
+        boolean changed = base.contains(x) ? removed.checkedAdd(x) : added.checkedRemove(x);
+        if (changed) {
+            mutated(1);
+        }
+        return changed;
+    }
+
+    /**
+     * 将区间记录到增量bitmap中，开销只与区间涉及的container数量相关
+     */
+    @Override
+    public void add(long rangeStart, long rangeEndExclusive) {
+        if (rangeEndExclusive > rangeStart) {
+            checkOffset(rangeStart);
+            checkOffset(rangeEndExclusive - 1);
+            ensureOpen();
+            MutableRoaringBitmap range = new MutableRoaringBitmap();
+            range.add(rangeStart, rangeEndExclusive);
+            removed.remove(rangeStart, rangeEndExclusive);
+            range.andNot(base);
+            added.or(range);
+            extend(rangeEndExclusive);
+            mutated(containers(rangeStart, rangeEndExclusive));
+        }
+    }
+
+    /**
+     * 将区间记录到增量bitmap中，开销只与区间涉及的container数量相关
+     */
+    @Override
+    public void remove(long rangeStart, long rangeEndExclusive) {
+        long start = Math.max(0L, rangeStart);
+        long end = Math.min(RoaringUnit.maxSize(), rangeEndExclusive);
+        if (end > start) {
+            ensureOpen();
+            MutableRoaringBitmap range = new MutableRoaringBitmap();
+            range.add(start, end);
+            added.remove(start, end);
+            range.and(base);
+            removed.or(range);
+            mutated(containers(start, end));
+        }
+    }
+
+    @Override
+    public boolean check(long offset) {
+        int x = castToInteger(offset);
+        ensureOpen();
+        return added.contains(x) || (base.contains(x) && !removed.contains(x));
+    }
+
+    @Override
+    public void addMany(long[] values, int from, int to) {
+        if (to <= from) {
+            return;
+        }
+        int[] batch = new int[to - from];
+        for (int i = from; i < to; i++) {
+            batch[i - from] = castToInteger(values[i]);
+        }
+        addMany(batch, 0, batch.length);
+    }
+
+    /**
+     * 批量写入增量bitmap
+     */
+    @Override
+    public void addMany(int[] values, int from, int to) {
+        if (to <= from) {
+            return;
+        }
+        ensureOpen();
+        int[] batch = from == 0 && to == values.length ? values : Arrays.copyOfRange(values, from, to);
+        MutableRoaringBitmap m = new MutableRoaringBitmap();
+        m.add(batch);
+        removed.andNot(m);
+        m.andNot(base);
+        added.or(m);
+        extend(RoaringUnit.unsignedMax(batch) + 1L);
+        mutated(to - from);
+    }
+
+    @Override
+    public void checkMany(long[] values, boolean[] results) {
+        for (int i = 0; i < values.length; i++) {
+            results[i] = check(values[i]);
+        }
+    }
+
+    @Override
+    public boolean containsAll(long[] values) {
+        for (long v : values) {
+            if (!check(v)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public OffHeapRoaringUnit and(OffHeapRoaringUnit other) {
+        return new OffHeapRoaringUnit(ImmutableRoaringBitmap.and(this.view(), other.view()),
+                Math.min(this.size, other.size));
+    }
+
+    @Override
+    public OffHeapRoaringUnit or(OffHeapRoaringUnit other) {
+        return new OffHeapRoaringUnit(ImmutableRoaringBitmap.or(this.view(), other.view()),
+                Math.max(this.size, other.size));
+    }
+
+    @Override
+    public OffHeapRoaringUnit xor(OffHeapRoaringUnit other) {
+        return new OffHeapRoaringUnit(ImmutableRoaringBitmap.xor(this.view(), other.view()),
+                Math.max(this.size, other.size));
+    }
+
+    @Override
+    public OffHeapRoaringUnit andNot(OffHeapRoaringUnit other) {
+        return new OffHeapRoaringUnit(ImmutableRoaringBitmap.andNot(this.view(), other.view()),
+                this.size);
+    }
+
+    @Override
+    public void andInPlace(OffHeapRoaringUnit other) {
+        store(ImmutableRoaringBitmap.and(this.view(), other.view()));
+        this.size = Math.min(this.size, other.size);
+    }
+
+    @Override
+    public void orInPlace(OffHeapRoaringUnit other) {
+        store(ImmutableRoaringBitmap.or(this.view(), other.view()));
+        this.size = Math.max(this.size, other.size);
+    }
+
+    @Override
+    public void xorInPlace(OffHeapRoaringUnit other) {
+        store(ImmutableRoaringBitmap.xor(this.view(), other.view()));
+        this.size = Math.max(this.size, other.size);
+    }
+
+    @Override
+    public void andNotInPlace(OffHeapRoaringUnit other) {
+        store(ImmutableRoaringBitmap.andNot(this.view(), other.view()));
+    }
+
+    /**
+     * 逐个container计算交集的基数并以long累加，单元的基数可以达到2^32，不能使用RoaringBitmap返回int的方法
+     */
+    @Override
+    public long andCardinality(OffHeapRoaringUnit other) {
+        MappeableContainerPointer p1 = this.view().getContainerPointer();
+        MappeableContainerPointer p2 = other.view().getContainerPointer();
+        long c = 0L;
+        while (p1.hasContainer() && p2.hasContainer()) {
+            int k1 = Short.toUnsignedInt(p1.key());
+            int k2 = Short.toUnsignedInt(p2.key());
+            if (k1 == k2) {
+                c += p1.getContainer().andCardinality(p2.getContainer());
+                p1.advance();
+                p2.advance();
+            } else if (k1 < k2) {
+                p1.advance();
+            } else {
+                p2.advance();
+            }
+        }
+        return c;
+    }
+
+    @Override
+    public long orCardinality(OffHeapRoaringUnit other) {
+        return this.cardinality() + other.cardinality() - andCardinality(other);
+    }
+
+    @Override
+    public long xorCardinality(OffHeapRoaringUnit other) {
+        return this.cardinality() + other.cardinality() - 2 * andCardinality(other);
+    }
+
+    @Override
+    public long andNotCardinality(OffHeapRoaringUnit other) {
+        return this.cardinality() - andCardinality(other);
+    }
+
+    @Override
+    public boolean intersects(OffHeapRoaringUnit other) {
+        return ImmutableRoaringBitmap.intersects(this.view(), other.view());
+    }
+
+    @Override
+    public OffHeapRoaringUnit not() {
+        return new OffHeapRoaringUnit(ImmutableRoaringBitmap.flip(view(), 0L, size), size);
+    }
+
+    @Override
+    public long first() {
+        ImmutableRoaringBitmap bitmap = view();
+        if (bitmap.isEmpty()) {
+            return -1;
+        }
+        return Integer.toUnsignedLong(bitmap.first());
+    }
+
+    @Override
+    public long last() {
+        ImmutableRoaringBitmap bitmap = view();
+        if (bitmap.isEmpty()) {
+            return -1;
+        }
+        return Integer.toUnsignedLong(bitmap.last());
+    }
+
+    @Override
+    public long size() {
+        if (this.size < 0) {
+            this.size = last() + 1L;
+        }
+        return size;
+    }
+
+    @Override
+    public long rank(long x) {
+        if (x < 0) {
+            return 0;
+        }
+        if (x >= RoaringUnit.maxSize()) {
+            return cardinality();
+        }
+        return view().rankLong((int) x);
+    }
+
+    /**
+     * 以long计算序号，逐个container跳过后在所在的container内选取，序号可以超过int的范围
+     */
+    @Override
+    public long select(long j) {
+        if (j < 0 || j >= cardinality()) {
+            throw new IllegalArgumentException("Select index:[" + j + "] is out of range [0, " + cardinality() + ").");
+        }
+        long remaining = j;
+        MappeableContainerPointer p = view().getContainerPointer();
+        while (remaining >= p.getCardinality()) {
+            remaining -= p.getCardinality();
+            p.advance();
+        }
+        return ((long) Short.toUnsignedInt(p.key()) << 16) | Short.toUnsignedInt(p.getContainer().select((int) remaining));
+    }
+
+    @Override
+    public long rangeCardinality(long rangeStart, long rangeEndExclusive) {
+        if (rangeEndExclusive <= rangeStart) {
+            return 0;
+        }
+        long end = rank(rangeEndExclusive - 1);
+        return rangeStart <= 0 ? end : end - rank(rangeStart - 1);
+    }
+
+    /**
+     * 堆上的增量修改及对象开销，加上堆外数据占用的字节数
+     *
+     * @return 估计的内存字节数
+     */
+    @Override
+    public long getSizeInBytes() {
+        return RoaringUnit.OBJECT_OVERHEAD * 2 + added.getLongSizeInBytes() + removed.getLongSizeInBytes()
+                + offHeapSizeInBytes();
+    }
+
+    @Override
+    public long cardinality() {
+        ensureOpen();
+        return base.getLongCardinality() - removed.getLongCardinality() + added.getLongCardinality();
+    }
+
+    @Override
+    public boolean extend(long newSize) {
+        newSize = newSize > RoaringUnit.maxSize() ? RoaringUnit.maxSize() : newSize;
+
+        if (newSize > size) {
+            size = newSize;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public OffHeapRoaringUnit copy() {
+        return new OffHeapRoaringUnit(view().toMutableRoaringBitmap(), this.size);
+    }
+
+    /**
+     * 堆外数据写入时已经做过runOptimize，这里只将增量修改合并写回堆外
+     *
+     * @return 总是返回false
+     */
+    @Override
+    public boolean runOptimize() {
+        flush();
+        return false;
+    }
+
+    @Override
+    public void trim() {
+        added.trim();
+        removed.trim();
+    }
+
+    @Override
+    public long serializedSizeInBytes() {
+        return view().serializedSizeInBytes();
+    }
+
+    /**
+     * 序列化当前bitmap到输出流，格式与{@link RoaringUnit}相同。
+     * 没有增量修改时直接写出堆外数据，否则写出合并后的堆上数据，不会修改当前单元的存储
+     *
+     * @param out 输出流
+     * @throws IOException
+     */
+    @Override
+    public void serialize(DataOutput out) throws IOException {
+        ImmutableRoaringBitmap bitmap = view();
+        if (bitmap != base) {
+            bitmap.serialize(out);
+            return;
+        }
+        ByteBuffer data = buffer.duplicate();
+        data.clear();
+        byte[] chunk = new byte[Math.min(data.remaining(), 8192)];
+        while (data.hasRemaining()) {
+            int length = Math.min(chunk.length, data.remaining());
+            data.get(chunk, 0, length);
+            out.write(chunk, 0, length);
+        }
+    }
+
+    @Override
+    public void deserialize(DataInput in) throws IOException {
+        MutableRoaringBitmap m = new MutableRoaringBitmap();
+        m.deserialize(in);
+        store(m);
+        this.size = last() + 1;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        serialize(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        deserialize(in);
+    }
+
+    @Override
+    public byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serialize(new DataOutputStream(bos));
+        return bos.toByteArray();
+    }
+
+    @Override
+    public OffHeapRoaringUnit fromBytes(byte[] bytes) throws IOException {
+        deserialize(new DataInputStream(new ByteArrayInputStream(bytes)));
+        return this;
+    }
+
+    @Override
+    public LongIterator longIterator() {
+        return peekableLongIterator();
+    }
+
+    @Override
+    public PeekableLongIterator peekableLongIterator() {
+        final PeekableLongIterator itr = new UnsignedPeekableIterator(view().getIntIterator());
+        final Lease lease = new Lease(generation);
+        return new PeekableLongIterator() {
+            @Override
+            public boolean hasNext() {
+                return lease.check(itr.hasNext());
+            }
+
+            @Override
+            public long next() {
+                return itr.next();
+            }
+
+            @Override
+            public long peekNext() {
+                return itr.peekNext();
+            }
+
+            @Override
+            public void advanceIfNeeded(long minVal) {
+                itr.advanceIfNeeded(minVal);
+            }
+        };
+    }
+
+    @Override
+    public LongIterator reverseLongIterator() {
+        final LongIterator itr = RoaringUnit.unsignedIterator(view().getReverseIntIterator());
+        final Lease lease = new Lease(generation);
+        return new LongIterator() {
+            @Override
+            public boolean hasNext() {
+                return lease.check(itr.hasNext());
+            }
+
+            @Override
+            public long next() {
+                return itr.next();
+            }
+        };
+    }
+
+    @Override
+    public LongBatchIterator batchIterator() {
+        final LongBatchIterator itr = new UnsignedBatchIterator(view().getIntIterator());
+        final Lease lease = new Lease(generation);
+        return new LongBatchIterator() {
+            @Override
+            public boolean hasNext() {
+                return lease.check(itr.hasNext());
+            }
+
+            @Override
+            public int nextBatch(long[] buffer, int offset, int length) {
+                return hasNext() ? itr.nextBatch(buffer, offset, length) : 0;
+            }
+        };
+    }
+
+    @Override
+    public void forEach(LongConsumer action) {
+        view().forEach((IntConsumer) i -> action.accept(Integer.toUnsignedLong(i)));
+    }
+
+
+    /**
+     * 将堆上的增量修改合并写回堆外
+     */
+    public void flush() {
+        if (pending > 0) {
+            store(materialize());
+        }
+    }
+
+
+    /**
+     * 增加一个持有者。单元被多个bitmap共享时，每个持有者各自调用一次{@link #close()}，最后一个持有者关闭时才释放堆外内存
+     */
+    void retain() {
+        owners.incrementAndGet();
+    }
+
+
+    /**
+     * 释放当前单元持有的堆外内存，仍有iterator在遍历时在遍历结束后释放。关闭后不能再使用该单元。
+     * 单元被共享时只减少一个持有者，最后一个持有者关闭时才释放
+     */
+    @Override
+    public void close() {
+        if (buffer != null && owners.decrementAndGet() == 0) {
+            OFF_HEAP_BYTES.addAndGet(-buffer.capacity());
+            Generation owned = generation;
+            buffer = null;
+            generation = null;
+            base = null;
+            added.clear();
+            removed.clear();
+            merged = null;
+            pending = 0;
+            owned.release();
+        }
+    }
+
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        OffHeapRoaringUnit that = (OffHeapRoaringUnit) o;
+        return view().equals(that.view());
+    }
+
+
+    @Override
+    public int hashCode() {
+        return view().hashCode();
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("[");
+        LongIterator itr = longIterator();
+        while (itr.hasNext()) {
+            if (builder.length() > 1) {
+                builder.append(",");
+            }
+            builder.append(itr.next());
+            if (builder.length() > 300 && itr.hasNext()) {
+                return builder.append("...]").toString();
+            }
+        }
+        builder.append("]");
+        builder.insert(0, getClass().getSimpleName());
+        return builder.toString();
+    }
+
+
+    /**
+     * 包含增量修改的完整数据，不会写回堆外，读取操作不会替换或释放堆外内存。
+     * 没有增量修改时返回堆外数据的视图，否则返回在堆上合并的数据，合并结果缓存到下一次修改
+     *
+     * @return 完整数据的只读视图
+     */
+    private ImmutableRoaringBitmap view() {
+        ensureOpen();
+        if (added.isEmpty() && removed.isEmpty()) {
+            return base;
+        }
+        MutableRoaringBitmap m = merged;
+        if (m == null) {
+            m = materialize();
+            merged = m;
+        }
+        return m;
+    }
+
+
+    /**
+     * 在堆上生成包含增量修改的完整数据
+     *
+     * @return 堆上的完整数据
+     */
+    private MutableRoaringBitmap materialize() {
+        ensureOpen();
+        MutableRoaringBitmap m = ImmutableRoaringBitmap.andNot(base, removed);
+        m.or(added);
+        return m;
+    }
+
+
+    /**
+     * 将完整数据写入新的堆外内存，并清空增量修改。
+     * 被替换的堆外内存在没有iterator使用时立即释放
+     *
+     * @param bitmap 完整数据
+     */
+    private void store(MutableRoaringBitmap bitmap) {
+        bitmap.runOptimize();
+        int length = bitmap.serializedSizeInBytes();
+        ByteBuffer newBuffer = ByteBuffer.allocateDirect(length);
+        try {
+            bitmap.serialize(new DataOutputStream(new ByteBufferOutputStream(newBuffer)));
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to write bitmap to off-heap buffer.", e);
+        }
+        newBuffer.flip();
+        OFF_HEAP_BYTES.addAndGet(length - offHeapSizeInBytes());
+        Generation replaced = this.generation;
+        this.buffer = newBuffer;
+        this.generation = new Generation(newBuffer);
+        this.base = new ImmutableRoaringBitmap(newBuffer);
+        this.added.clear();
+        this.removed.clear();
+        this.merged = null;
+        this.pending = 0;
+        this.nextCheck = CHECK_INTERVAL;
+        if (replaced != null) {
+            replaced.release();
+        }
+    }
+
+
+    /**
+     * 记录增量修改的数量，每累计{@link #CHECK_INTERVAL}次检查一次增量占用的内存，超过阈值时合并写回堆外
+     *
+     * @param count 本次修改的数量
+     */
+    private void mutated(long count) {
+        merged = null;
+        pending += count;
+        if (pending < nextCheck) {
+            return;
+        }
+        long deltaBytes = added.getLongSizeInBytes() + removed.getLongSizeInBytes();
+        if (deltaBytes >= Math.max(MIN_DELTA_BYTES, offHeapSizeInBytes() >>> DELTA_RATIO_SHIFT)) {
+            flush();
+        } else {
+            nextCheck = pending + CHECK_INTERVAL;
+        }
+    }
+
+
+    /**
+     * 区间 [start, end) 涉及的container数量
+     */
+    private static long containers(long start, long end) {
+        return ((end - 1) >>> 16) - (start >>> 16) + 1;
+    }
+
+
+    private void ensureOpen() {
+        if (base == null) {
+            throw new IllegalStateException(getClass().getSimpleName() + " is closed.");
+        }
+    }
+
+
+    private int castToInteger(long x) {
+        checkOffset(x);
+        return (int) x;
+    }
+
+
+    private void checkOffset(long offset) {
+        if (offset < 0 || offset >= RoaringUnit.maxSize()) {
+            throw new IllegalArgumentException(String.format("Offset must be in range [0, %s.%d). Your offset is: %d.",
+                    this.getClass().getSimpleName(), RoaringUnit.maxSize(), offset));
+        }
+    }
+
+
+    /**
+     * 一块堆外内存及其引用计数。单元本身持有一个引用，直到该内存被替换或者单元被关闭；
+     * 每个iterator遍历期间各持有一个引用，引用全部释放后立即释放堆外内存
+     */
+    private static final class Generation {
+
+        private final ByteBuffer buffer;
+
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        private Generation(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private void retain() {
+            refs.incrementAndGet();
+        }
+
+        private void release() {
+            if (refs.decrementAndGet() == 0) {
+                DirectBuffers.free(buffer);
+            }
+        }
+    }
+
+
+    /**
+     * iterator对一块堆外内存的引用，遍历结束时释放
+     */
+    private static final class Lease {
+
+        private Generation generation;
+
+        private Lease(Generation generation) {
+            generation.retain();
+            this.generation = generation;
+        }
+
+        /**
+         * hasNext为false时释放引用
+         */
+        private boolean check(boolean hasNext) {
+            if (!hasNext && generation != null) {
+                Generation g = generation;
+                generation = null;
+                g.release();
+            }
+            return hasNext;
+        }
+    }
+
+
+    /**
+     * 将写入的数据保存到ByteBuffer中的输出流
+     */
+    private static final class ByteBufferOutputStream extends OutputStream {
+
+        private final ByteBuffer buffer;
+
+        private ByteBufferOutputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write(int b) {
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buffer.put(b, off, len);
+        }
+    }
+
+
+    /**
+     * 立即释放direct ByteBuffer的工具，当前JVM不支持时交由GC回收
+     */
+    private static final class DirectBuffers {
+
+        private static final Object UNSAFE;
+
+        private static final Method INVOKE_CLEANER;
+
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // Java 8及以下没有invokeCleaner，释放时改用DirectByteBuffer.cleaner()
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+
+        private static void free(ByteBuffer buffer) {
+            if (!buffer.isDirect()) {
+                return;
+            }
+            try {
+                if (INVOKE_CLEANER != null) {
+                    INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                    return;
+                }
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // 无法立即释放时交由GC回收
+            }
+        }
+    }
+}
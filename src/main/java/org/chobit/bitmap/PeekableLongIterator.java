@@ -0,0 +1,26 @@
+package org.chobit.bitmap;
+
+/**
+ * 可以查看下一个值、并可以跳过较小值的iterator，适用于多个有序集合之间的合并及求交集
+ *
+ * @author robin
+ */
+public interface PeekableLongIterator extends LongIterator {
+
+
+    /**
+     * 查看下一个值，但不移动iterator。调用前应先调用{@link #hasNext()}
+     *
+     * @return 下一个长整型值
+     */
+    long peekNext();
+
+
+    /**
+     * 跳过全部小于minVal的值，此后iterator的下一个值不小于minVal。minVal不大于下一个值时不做任何处理
+     *
+     * @param minVal 下一个值的最小值
+     */
+    void advanceIfNeeded(long minVal);
+
+}
@@ -1,30 +1,50 @@
 package org.chobit.bitmap;
 
+import org.roaringbitmap.ContainerPointer;
+import org.roaringbitmap.IntConsumer;
 import org.roaringbitmap.IntIterator;
 
 import java.io.*;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
 
 /**
  * 对{@link org.roaringbitmap.RoaringBitmap}的封装，主要用来作为ExtRoaringBitmap的子单元。
  * <p>
- * 封装后的bitmap仍然只能设置整型值。
+ * 封装后的bitmap使用RoaringBitmap完整的无符号整型范围，可设置的值为[0, 2^32)。
  *
  * @author robin
  */
 public class RoaringUnit implements IBitmap<RoaringUnit> {
 
 
+    /**
+     * bitmap容量的二进制位数
+     */
+    public static final int UNIT_BITS = 32;
+
+    /**
+     * RoaringUnit、RoaringBitmap及其RoaringArray对象自身的估计开销(字节)，不包括container
+     */
+    static final long OBJECT_OVERHEAD = 64;
+
+
     private final org.roaringbitmap.RoaringBitmap bitmap;
 
     private long size;
 
+    /**
+     * 缓存的基数，单个值的增删时增量维护，其他修改后置为-1，在下次读取时重新计算
+     */
+    private long cardinality = -1;
+
 
     public RoaringUnit() {
         this(new org.roaringbitmap.RoaringBitmap(), 0);
     }
 
     public RoaringUnit(org.roaringbitmap.RoaringBitmap bitmap) {
-        this(bitmap, bitmap.isEmpty() ? 0 : bitmap.last() + 1);
+        this(bitmap, bitmap.isEmpty() ? 0 : Integer.toUnsignedLong(bitmap.last()) + 1);
     }
 
     public RoaringUnit(org.roaringbitmap.RoaringBitmap bitmap, long size) {
@@ -35,22 +55,45 @@ public class RoaringUnit implements IBitmap<RoaringUnit> {
 
     @Override
     public void add(long offset) {
-        int x = castToInteger(offset);
-        bitmap.add(x);
-        extend(x + 1L);
+        checkedAdd(offset);
     }
 
     @Override
     public void remove(long offset) {
-        bitmap.remove(castToInteger(offset));
+        checkedRemove(offset);
+    }
+
+    @Override
+    public boolean checkedAdd(long offset) {
+        int x = castToInteger(offset);
+        extend(offset + 1L);
+        if (bitmap.checkedAdd(x)) {
+            if (cardinality >= 0) {
+                cardinality++;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean checkedRemove(long offset) {
+        if (bitmap.checkedRemove(castToInteger(offset))) {
+            if (cardinality >= 0) {
+                cardinality--;
+            }
+            return true;
+        }
+        return false;
     }
 
     @Override
     public void add(long rangeStart, long rangeEndExclusive) {
-        int start = castToInteger(rangeStart);
-        int end = castToInteger(rangeEndExclusive - 1);
-        if (end > start) {
+        if (rangeEndExclusive > rangeStart) {
+            checkOffset(rangeStart);
+            checkOffset(rangeEndExclusive - 1);
             bitmap.add(rangeStart, rangeEndExclusive);
+            cardinality = -1;
             extend(rangeEndExclusive);
         }
     }
@@ -58,6 +101,7 @@ public class RoaringUnit implements IBitmap<RoaringUnit> {
     @Override
     public void remove(long rangeStart, long rangeEndExclusive) {
         bitmap.remove(rangeStart, rangeEndExclusive);
+        cardinality = -1;
     }
 
     @Override
@@ -65,6 +109,49 @@ public class RoaringUnit implements IBitmap<RoaringUnit> {
         return bitmap.contains(castToInteger(offset));
     }
 
+    @Override
+    public void addMany(long[] values, int from, int to) {
+        if (to <= from) {
+            return;
+        }
+        int[] xs = new int[to - from];
+        for (int i = from; i < to; i++) {
+            xs[i - from] = castToInteger(values[i]);
+        }
+        addMany(xs, 0, xs.length);
+    }
+
+    /**
+     * 整个数组直接交给{@link org.roaringbitmap.RoaringBitmap#add(int...)}，不会复制
+     */
+    @Override
+    public void addMany(int[] values, int from, int to) {
+        if (to <= from) {
+            return;
+        }
+        int[] xs = from == 0 && to == values.length ? values : Arrays.copyOfRange(values, from, to);
+        bitmap.add(xs);
+        cardinality = -1;
+        extend(unsignedMax(xs) + 1L);
+    }
+
+    @Override
+    public void checkMany(long[] values, boolean[] results) {
+        for (int i = 0; i < values.length; i++) {
+            results[i] = check(values[i]);
+        }
+    }
+
+    @Override
+    public boolean containsAll(long[] values) {
+        for (long v : values) {
+            if (!check(v)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public RoaringUnit and(RoaringUnit other) {
         return new RoaringUnit(org.roaringbitmap.RoaringBitmap.and(this.bitmap, other.bitmap),
@@ -89,10 +176,82 @@ public class RoaringUnit implements IBitmap<RoaringUnit> {
                 this.size);
     }
 
+    @Override
+    public void andInPlace(RoaringUnit other) {
+        this.bitmap.and(other.bitmap);
+        this.cardinality = -1;
+        this.size = Math.min(this.size, other.size);
+    }
+
+    @Override
+    public void orInPlace(RoaringUnit other) {
+        this.bitmap.or(other.bitmap);
+        this.cardinality = -1;
+        this.size = Math.max(this.size, other.size);
+    }
+
+    @Override
+    public void xorInPlace(RoaringUnit other) {
+        this.bitmap.xor(other.bitmap);
+        this.cardinality = -1;
+        this.size = Math.max(this.size, other.size);
+    }
+
+    @Override
+    public void andNotInPlace(RoaringUnit other) {
+        this.bitmap.andNot(other.bitmap);
+        this.cardinality = -1;
+    }
+
+    /**
+     * 逐个container计算交集的基数并以long累加，单元的基数可以达到2^32，不能使用RoaringBitmap返回int的方法
+     */
+    @Override
+    public long andCardinality(RoaringUnit other) {
+        ContainerPointer p1 = this.bitmap.getContainerPointer();
+        ContainerPointer p2 = other.bitmap.getContainerPointer();
+        long c = 0L;
+        while (p1.getContainer() != null && p2.getContainer() != null) {
+            int k1 = Short.toUnsignedInt(p1.key());
+            int k2 = Short.toUnsignedInt(p2.key());
+            if (k1 == k2) {
+                c += p1.getContainer().andCardinality(p2.getContainer());
+                p1.advance();
+                p2.advance();
+            } else if (k1 < k2) {
+                p1.advance();
+            } else {
+                p2.advance();
+            }
+        }
+        return c;
+    }
+
+    @Override
+    public long orCardinality(RoaringUnit other) {
+        return this.cardinality() + other.cardinality() - andCardinality(other);
+    }
+
+    @Override
+    public long xorCardinality(RoaringUnit other) {
+        return this.cardinality() + other.cardinality() - 2 * andCardinality(other);
+    }
+
+    @Override
+    public long andNotCardinality(RoaringUnit other) {
+        return this.cardinality() - andCardinality(other);
+    }
+
+    @Override
+    public boolean intersects(RoaringUnit other) {
+        return org.roaringbitmap.RoaringBitmap.intersects(this.bitmap, other.bitmap);
+    }
+
     @Override
     public RoaringUnit not() {
         RoaringUnit x = copy();
         x.bitmap.flip(0, size);
+        x.cardinality = -1;
         return x;
     }
 
@@ -101,7 +260,7 @@ public class RoaringUnit implements IBitmap<RoaringUnit> {
         if (bitmap.isEmpty()) {
             return -1;
         }
-        return bitmap.first();
+        return Integer.toUnsignedLong(bitmap.first());
     }
 
     @Override
@@ -109,20 +268,80 @@ public class RoaringUnit implements IBitmap<RoaringUnit> {
         if (bitmap.isEmpty()) {
             return -1;
         }
-        return bitmap.last();
+        return Integer.toUnsignedLong(bitmap.last());
     }
 
     @Override
     public long size() {
         if (this.size < 0) {
-            this.size = this.bitmap.last() + 1L;
+            this.size = last() + 1L;
         }
         return size;
     }
 
+    @Override
+    public long rank(long x) {
+        if (x < 0) {
+            return 0;
+        }
+        if (x >= maxSize()) {
+            return cardinality();
+        }
+        return bitmap.rankLong((int) x);
+    }
+
+    /**
+     * 以long计算序号，逐个container跳过后在所在的container内选取，序号可以超过int的范围
+     */
+    @Override
+    public long select(long j) {
+        if (j < 0 || j >= cardinality()) {
+            throw new IllegalArgumentException("Select index:[" + j + "] is out of range [0, " + cardinality() + ").");
+        }
+        long remaining = j;
+        ContainerPointer p = bitmap.getContainerPointer();
+        while (remaining >= p.getCardinality()) {
+            remaining -= p.getCardinality();
+            p.advance();
+        }
+        return ((long) Short.toUnsignedInt(p.key()) << 16) | Short.toUnsignedInt(p.getContainer().select((int) remaining));
+    }
+
+    @Override
+    public long rangeCardinality(long rangeStart, long rangeEndExclusive) {
+        if (rangeEndExclusive <= rangeStart) {
+            return 0;
+        }
+        long end = rank(rangeEndExclusive - 1);
+        return rangeStart <= 0 ? end : end - rank(rangeStart - 1);
+    }
+
+    /**
+     * 内部RoaringBitmap的内存占用，加上RoaringUnit对象自身的开销
+     *
+     * @return 估计的内存字节数
+     */
+    @Override
+    public long getSizeInBytes() {
+        return OBJECT_OVERHEAD + bitmap.getLongSizeInBytes();
+    }
+
     @Override
     public long cardinality() {
-        return this.bitmap.getLongCardinality();
+        if (cardinality < 0) {
+            cardinality = this.bitmap.getLongCardinality();
+        }
+        return cardinality;
+    }
+
+
+    /**
+     * 被封装的RoaringBitmap
+     *
+     * @return 被封装的RoaringBitmap
+     */
+    org.roaringbitmap.RoaringBitmap bitmap() {
+        return bitmap;
     }
 
 
@@ -131,8 +350,8 @@ public class RoaringUnit implements IBitmap<RoaringUnit> {
      *
      * @return 当前bitmap的最大size
      */
-    public static int maxSize() {
-        return Integer.MAX_VALUE;
+    public static long maxSize() {
+        return 1L << UNIT_BITS;
     }
 
     @Override
@@ -148,37 +367,54 @@ public class RoaringUnit implements IBitmap<RoaringUnit> {
 
     @Override
     public RoaringUnit copy() {
-        return new RoaringUnit(this.bitmap.clone(), this.size);
+        RoaringUnit copy = new RoaringUnit(this.bitmap.clone(), this.size);
+        copy.cardinality = this.cardinality;
+        return copy;
     }
 
 
+    @Override
+    public boolean runOptimize() {
+        return this.bitmap.runOptimize();
+    }
+
+    @Override
+    public void trim() {
+        this.bitmap.trim();
+    }
+
+    @Override
+    public long serializedSizeInBytes() {
+        return this.bitmap.serializedSizeInBytes();
+    }
+
     @Override
     public void serialize(DataOutput out) throws IOException {
-        this.bitmap.runOptimize();
         this.bitmap.serialize(out);
     }
 
     @Override
     public void deserialize(DataInput in) throws IOException {
         this.bitmap.deserialize(in);
+        this.cardinality = -1;
         this.size = last() + 1;
     }
 
     @Override
     public void writeExternal(ObjectOutput out) throws IOException {
-        this.bitmap.runOptimize();
         this.bitmap.writeExternal(out);
     }
 
     @Override
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
         this.bitmap.readExternal(in);
+        this.cardinality = -1;
         this.size = last() + 1;
     }
 
     @Override
     public byte[] toBytes() throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream((int) serializedSizeInBytes());
         serialize(new DataOutputStream(bos));
         return bos.toByteArray();
     }
@@ -191,10 +427,49 @@ public class RoaringUnit implements IBitmap<RoaringUnit> {
 
     @Override
     public LongIterator longIterator() {
-        return new LongIterator() {
+        return peekableLongIterator();
+    }
+
+    @Override
+    public PeekableLongIterator peekableLongIterator() {
+        return new UnsignedPeekableIterator(bitmap.getIntIterator());
+    }
 
-            private IntIterator itr = bitmap.getIntIterator();
+    @Override
+    public LongIterator reverseLongIterator() {
+        return unsignedIterator(bitmap.getReverseIntIterator());
+    }
 
+    @Override
+    public LongBatchIterator batchIterator() {
+        return new UnsignedBatchIterator(bitmap.getIntIterator());
+    }
+
+    @Override
+    public void forEach(LongConsumer action) {
+        bitmap.forEach((IntConsumer) i -> action.accept(Integer.toUnsignedLong(i)));
+    }
+
+
+    /**
+     * 按无符号整型处理的最大值
+     */
+    static long unsignedMax(int[] values) {
+        int max = 0;
+        for (int v : values) {
+            if (Integer.compareUnsigned(v, max) > 0) {
+                max = v;
+            }
+        }
+        return Integer.toUnsignedLong(max);
+    }
+
+
+    /**
+     * 将int iterator适配为LongIterator，int值按无符号整型处理
+     */
+    static LongIterator unsignedIterator(final IntIterator itr) {
+        return new LongIterator() {
             @Override
             public boolean hasNext() {
                 return itr.hasNext();
@@ -202,12 +477,31 @@ public class RoaringUnit implements IBitmap<RoaringUnit> {
 
             @Override
             public long next() {
-                return itr.next();
+                return Integer.toUnsignedLong(itr.next());
             }
         };
     }
 
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        RoaringUnit that = (RoaringUnit) o;
+        return bitmap.equals(that.bitmap);
+    }
+
+
+    @Override
+    public int hashCode() {
+        return bitmap.hashCode();
+    }
+
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
@@ -217,7 +511,7 @@ public class RoaringUnit implements IBitmap<RoaringUnit> {
             if (builder.length() > 1) {
                 builder.append(",");
             }
-            builder.append(itr.next());
+            builder.append(Integer.toUnsignedLong(itr.next()));
             if (builder.length() > 300 && itr.hasNext()) {
                 return builder.append("...]").toString();
             }
@@ -228,15 +522,15 @@ public class RoaringUnit implements IBitmap<RoaringUnit> {
     }
 
 
-    private int castToInteger(Long x) {
+    private int castToInteger(long x) {
         checkOffset(x);
-        return x.intValue();
+        return (int) x;
     }
 
 
     private void checkOffset(long offset) {
-        if (offset > maxSize()) {
-            throw new IllegalArgumentException(String.format("Offset must be less than %s.%d. Your offset is: %d.",
+        if (offset < 0 || offset >= maxSize()) {
+            throw new IllegalArgumentException(String.format("Offset must be in range [0, %s.%d). Your offset is: %d.",
                     this.getClass().getSimpleName(), maxSize(), offset));
         }
     }
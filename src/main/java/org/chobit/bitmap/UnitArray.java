@@ -0,0 +1,260 @@
+package org.chobit.bitmap;
+
+import java.util.Arrays;
+
+/**
+ * 稀疏的bitmap单元目录。
+ * <p>
+ * 只保存实际存在的bitmap单元，单元的index保存在有序的int数组中，通过二分查找定位单元。
+ * 内存占用和遍历开销只与实际存在的单元数量相关，与最大的index无关。
+ *
+ * @param <U> bitmap单元的类型
+ * @author robin
+ */
+public final class UnitArray<U extends IBitmap<U>> {
+
+
+    private static final int INITIAL_CAPACITY = 4;
+
+
+    private int[] keys;
+
+    private Object[] units;
+
+    private int size;
+
+    /**
+     * 标记各单元是否与其他目录(快照)共享，共享的单元在修改前需要先复制。没有共享过单元时为null
+     */
+    private boolean[] shared;
+
+
+    UnitArray() {
+        this(INITIAL_CAPACITY);
+    }
+
+
+    UnitArray(int initialCapacity) {
+        int capacity = Math.max(initialCapacity, 1);
+        this.keys = new int[capacity];
+        this.units = new Object[capacity];
+        this.size = 0;
+    }
+
+
+    /**
+     * 目录中实际存在的单元数量
+     *
+     * @return 单元数量
+     */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * 目录是否为空
+     *
+     * @return 没有任何单元则返回true
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+
+    /**
+     * 获取指定位置上单元的index
+     *
+     * @param pos 单元在目录中的位置
+     * @return 单元的index
+     */
+    public int keyAt(int pos) {
+        return keys[pos];
+    }
+
+
+    /**
+     * 获取指定位置上的单元
+     *
+     * @param pos 单元在目录中的位置
+     * @return bitmap单元
+     */
+    @SuppressWarnings("unchecked")
+    public U unitAt(int pos) {
+        return (U) units[pos];
+    }
+
+
+    /**
+     * 查找指定index的单元在目录中的位置
+     *
+     * @param key 单元的index
+     * @return 单元在目录中的位置；不存在时返回 (-(插入位置) - 1)
+     */
+    public int indexOf(int key) {
+        if (size == 0 || keys[size - 1] < key) {
+            return -size - 1;
+        }
+        if (keys[size - 1] == key) {
+            return size - 1;
+        }
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+
+    /**
+     * 获取指定index的单元
+     *
+     * @param key 单元的index
+     * @return bitmap单元，不存在时返回null
+     */
+    public U get(int key) {
+        int pos = indexOf(key);
+        return pos < 0 ? null : unitAt(pos);
+    }
+
+
+    /**
+     * 目录中最大的单元index
+     *
+     * @return 最大的单元index，目录为空时返回-1
+     */
+    public int lastKey() {
+        return size == 0 ? -1 : keys[size - 1];
+    }
+
+
+    /**
+     * 目录数组的容量
+     *
+     * @return 目录数组的容量
+     */
+    int capacity() {
+        return keys.length;
+    }
+
+
+    void setUnitAt(int pos, U unit) {
+        units[pos] = unit;
+        if (shared != null) {
+            shared[pos] = false;
+        }
+    }
+
+
+    void insertAt(int pos, int key, U unit) {
+        ensureCapacity(size + 1);
+        if (pos < size) {
+            System.arraycopy(keys, pos, keys, pos + 1, size - pos);
+            System.arraycopy(units, pos, units, pos + 1, size - pos);
+            if (shared != null) {
+                System.arraycopy(shared, pos, shared, pos + 1, size - pos);
+            }
+        }
+        keys[pos] = key;
+        units[pos] = unit;
+        if (shared != null) {
+            shared[pos] = false;
+        }
+        size++;
+    }
+
+
+    /**
+     * 指定位置上的单元是否与其他目录共享
+     *
+     * @param pos 单元在目录中的位置
+     * @return 共享时返回true
+     */
+    boolean isShared(int pos) {
+        return shared != null && shared[pos];
+    }
+
+
+    /**
+     * 将指定位置上的单元标记为共享
+     *
+     * @param pos 单元在目录中的位置
+     */
+    void markShared(int pos) {
+        if (shared == null) {
+            shared = new boolean[keys.length];
+        }
+        shared[pos] = true;
+    }
+
+
+    /**
+     * 创建与当前目录共享全部单元的新目录，两个目录中的单元均被标记为共享
+     *
+     * @return 新目录
+     */
+    UnitArray<U> share() {
+        UnitArray<U> copy = new UnitArray<>(size);
+        System.arraycopy(keys, 0, copy.keys, 0, size);
+        System.arraycopy(units, 0, copy.units, 0, size);
+        copy.size = size;
+        for (int i = 0; i < size; i++) {
+            copy.markShared(i);
+            this.markShared(i);
+        }
+        return copy;
+    }
+
+
+    /**
+     * 使用另一个目录的内容替换当前目录的内容，另一个目录此后不应再被使用
+     *
+     * @param other 另一个目录
+     */
+    void assign(UnitArray<U> other) {
+        this.keys = other.keys;
+        this.units = other.units;
+        this.size = other.size;
+        this.shared = other.shared;
+    }
+
+
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity > keys.length) {
+            int newCapacity = Math.max(minCapacity, keys.length < 1024 ? keys.length * 2 : keys.length * 5 / 4);
+            keys = Arrays.copyOf(keys, newCapacity);
+            units = Arrays.copyOf(units, newCapacity);
+            if (shared != null) {
+                shared = Arrays.copyOf(shared, newCapacity);
+            }
+        }
+    }
+
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        UnitArray<?> that = (UnitArray<?>) o;
+        if (size != that.size) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (keys[i] != that.keys[i] || !units[i].equals(that.units[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    @Override
+    public int hashCode() {
+        int result = 1;
+        for (int i = 0; i < size; i++) {
+            result = 31 * result + keys[i];
+            result = 31 * result + units[i].hashCode();
+        }
+        return result;
+    }
+}
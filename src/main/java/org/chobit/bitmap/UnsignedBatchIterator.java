@@ -0,0 +1,36 @@
+package org.chobit.bitmap;
+
+import org.roaringbitmap.IntIterator;
+
+/**
+ * 将RoaringBitmap的{@link IntIterator}适配为{@link LongBatchIterator}，int值按无符号整型处理
+ *
+ * @author robin
+ */
+final class UnsignedBatchIterator implements LongBatchIterator {
+
+
+    private final IntIterator itr;
+
+
+    UnsignedBatchIterator(IntIterator itr) {
+        this.itr = itr;
+    }
+
+
+    @Override
+    public boolean hasNext() {
+        return itr.hasNext();
+    }
+
+    @Override
+    public int nextBatch(long[] buffer, int offset, int length) {
+        IntIterator it = this.itr;
+        int end = offset + length;
+        int i = offset;
+        while (i < end && it.hasNext()) {
+            buffer[i++] = it.next() & 0xFFFFFFFFL;
+        }
+        return i - offset;
+    }
+}
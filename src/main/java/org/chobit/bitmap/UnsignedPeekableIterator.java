@@ -0,0 +1,49 @@
+package org.chobit.bitmap;
+
+import org.roaringbitmap.PeekableIntIterator;
+
+/**
+ * 将RoaringBitmap的{@link PeekableIntIterator}适配为{@link PeekableLongIterator}，int值按无符号整型处理，范围为[0, 2^32)
+ *
+ * @author robin
+ */
+final class UnsignedPeekableIterator implements PeekableLongIterator {
+
+
+    private final PeekableIntIterator itr;
+
+    private boolean exhausted;
+
+
+    UnsignedPeekableIterator(PeekableIntIterator itr) {
+        this.itr = itr;
+    }
+
+
+    @Override
+    public boolean hasNext() {
+        return !exhausted && itr.hasNext();
+    }
+
+    @Override
+    public long next() {
+        return Integer.toUnsignedLong(itr.next());
+    }
+
+    @Override
+    public long peekNext() {
+        return Integer.toUnsignedLong(itr.peekNext());
+    }
+
+    @Override
+    public void advanceIfNeeded(long minVal) {
+        if (minVal <= 0) {
+            return;
+        }
+        if (minVal >= RoaringUnit.maxSize()) {
+            exhausted = true;
+            return;
+        }
+        itr.advanceIfNeeded((int) minVal);
+    }
+}
@@ -0,0 +1,83 @@
+package org.chobit.bitmap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author robin
+ */
+public class BitmapExprTest {
+
+
+    private static final long BOUNDARY = RoaringUnit.maxSize();
+
+
+    private static ExtRoaringBitmap bitmap(long step, long... units) {
+        ExtRoaringBitmap bitmap = new ExtRoaringBitmap();
+        for (long unit : units) {
+            for (long v = 0; v < 3000; v += step) {
+                bitmap.add(BOUNDARY * unit + v);
+            }
+        }
+        return bitmap;
+    }
+
+
+    @Test
+    public void evaluate() {
+        ExtRoaringBitmap a = bitmap(2, 0, 1, 3, 5);
+        ExtRoaringBitmap b = bitmap(3, 0, 1, 2, 5);
+        ExtRoaringBitmap c = bitmap(5, 1, 2, 4, 5);
+        ExtRoaringBitmap d = bitmap(7, 0, 5);
+        ExtRoaringBitmap e = bitmap(1, 5);
+        ExtRoaringBitmap aCopy = a.copy();
+
+        // (A ∧ B) ∨ (C ∧ ¬D)
+        BitmapExpr expr = BitmapExpr.allOf(a, b).or(BitmapExpr.of(c).andNot(d));
+        ExtRoaringBitmap expected = a.and(b).or(c.andNot(d));
+        Assert.assertEquals(expected, expr.evaluate());
+        Assert.assertEquals(expected.cardinality(), expr.cardinality());
+
+        // 嵌套形式：bitmap与表达式混合时，bitmap通过of转换为表达式
+        expr = BitmapExpr.allOf(BitmapExpr.of(a), BitmapExpr.anyOf(b, c)).andNot(d);
+        expected = a.and(b.or(c)).andNot(d);
+        Assert.assertEquals(expected, expr.evaluate());
+        Assert.assertEquals(expected, BitmapExpr.allOf(a).and(BitmapExpr.anyOf(b, c)).andNot(d).evaluate());
+
+        // 嵌套and与或的展开
+        expr = BitmapExpr.allOf(BitmapExpr.of(e), BitmapExpr.anyOf(BitmapExpr.of(a), BitmapExpr.allOf(b, c)))
+                .andNot(d).and(a);
+        expected = e.and(a.or(b.and(c))).andNot(d).and(a);
+        Assert.assertEquals(expected, expr.evaluate());
+        Assert.assertEquals(expected.cardinality(), expr.cardinality());
+
+        // 操作数没有被修改，结果不与操作数共享unit bitmap
+        Assert.assertEquals(aCopy, a);
+        ExtRoaringBitmap result = BitmapExpr.anyOf(a, new ExtRoaringBitmap()).evaluate();
+        result.add(BOUNDARY * 3 + 1);
+        Assert.assertEquals(aCopy, a);
+    }
+
+
+    @Test
+    public void emptyOperands() {
+        ExtRoaringBitmap a = bitmap(2, 0, 1);
+        ExtRoaringBitmap empty = new ExtRoaringBitmap();
+        Assert.assertTrue(BitmapExpr.allOf(a, empty).evaluate().cardinality() == 0);
+        Assert.assertEquals(0, BitmapExpr.allOf(a, bitmap(2, 3)).cardinality());
+        Assert.assertTrue(BitmapExpr.of(a).andNot(a).evaluate().cardinality() == 0);
+        Assert.assertEquals(a, BitmapExpr.of(a).andNot(empty).evaluate());
+        try {
+            BitmapExpr.anyOf(new BitmapExpr[0]);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            BitmapExpr.allOf(BitmapExpr.of(a), null);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
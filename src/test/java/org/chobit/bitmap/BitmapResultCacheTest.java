@@ -0,0 +1,118 @@
+package org.chobit.bitmap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * @author robin
+ */
+public class BitmapResultCacheTest {
+
+
+    private static final long BOUNDARY = RoaringUnit.maxSize();
+
+
+    @Test
+    public void hitAndInvalidate() {
+        ExtRoaringBitmap a = new ExtRoaringBitmap();
+        a.add(0L, 1000L);
+        a.add(BOUNDARY * 2 + 5);
+        ExtRoaringBitmap b = new ExtRoaringBitmap();
+        b.add(500L, 1500L);
+        b.add(BOUNDARY * 2 + 5);
+
+        BitmapResultCache cache = new BitmapResultCache(1 << 20);
+        ExtRoaringBitmap result = cache.and(a, b);
+        Assert.assertEquals(a.and(b), result);
+        Assert.assertEquals(0, cache.hitCount());
+        Assert.assertEquals(1, cache.size());
+        Assert.assertTrue(cache.sizeInBytes() > 0);
+
+        // 交换操作数同样命中；修改返回的结果不影响缓存
+        result.add(BOUNDARY * 7);
+        ExtRoaringBitmap cached = cache.and(b, a);
+        Assert.assertEquals(1, cache.hitCount());
+        Assert.assertEquals(a.and(b), cached);
+        cached.remove(600L);
+        Assert.assertEquals(a.and(b), cache.and(a, b));
+        Assert.assertEquals(2, cache.hitCount());
+
+        // 修改操作数后缓存失效
+        long version = a.version();
+        a.add(1200L);
+        Assert.assertTrue(a.version() > version);
+        Assert.assertEquals(a.and(b), cache.and(a, b));
+        Assert.assertEquals(2, cache.hitCount());
+        b.remove(BOUNDARY * 2 + 5);
+        Assert.assertEquals(a.and(b), cache.and(a, b));
+        Assert.assertEquals(3, cache.missCount());
+
+        // 没有实际修改时缓存仍然有效
+        a.add(1200L);
+        b.remove(BOUNDARY * 9);
+        cache.and(a, b);
+        Assert.assertEquals(3, cache.hitCount());
+
+        Assert.assertEquals(a.andNot(b), cache.andNot(a, b));
+        Assert.assertEquals(b.andNot(a), cache.andNot(b, a));
+        Assert.assertEquals(3, cache.size());
+        cache.invalidate(a);
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.sizeInBytes());
+    }
+
+
+    @Test
+    public void evictByBytes() {
+        ExtRoaringBitmap[] bitmaps = new ExtRoaringBitmap[6];
+        for (int i = 0; i < bitmaps.length; i++) {
+            bitmaps[i] = new ExtRoaringBitmap();
+            for (long v = 0; v < 20000; v += i + 2) {
+                bitmaps[i].add(BOUNDARY * i + v);
+                bitmaps[i].add(BOUNDARY * (i + 1) + v);
+            }
+        }
+        long one = bitmaps[0].or(bitmaps[1]).getSizeInBytes();
+        BitmapResultCache cache = new BitmapResultCache(one * 2);
+        for (int i = 0; i + 1 < bitmaps.length; i++) {
+            Assert.assertEquals(bitmaps[i].or(bitmaps[i + 1]), cache.or(bitmaps[i], bitmaps[i + 1]));
+            Assert.assertTrue(cache.sizeInBytes() <= one * 2);
+        }
+        Assert.assertTrue(cache.size() < bitmaps.length - 1);
+
+        // 最近使用的结果仍在缓存中，最早的结果已被淘汰
+        long hits = cache.hitCount();
+        cache.or(bitmaps[4], bitmaps[5]);
+        Assert.assertEquals(hits + 1, cache.hitCount());
+        cache.or(bitmaps[0], bitmaps[1]);
+        Assert.assertEquals(hits + 1, cache.hitCount());
+
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.sizeInBytes());
+    }
+
+
+    @Test
+    public void operandsAreNotRetained() throws InterruptedException {
+        BitmapResultCache cache = new BitmapResultCache(1 << 20);
+        ExtRoaringBitmap a = new ExtRoaringBitmap();
+        a.add(0L, 1000L);
+        ExtRoaringBitmap b = new ExtRoaringBitmap();
+        b.add(500L, 1500L);
+        cache.or(a, b);
+        Assert.assertEquals(1, cache.size());
+
+        WeakReference<ExtRoaringBitmap> ref = new WeakReference<>(a);
+        a = null;
+        for (int i = 0; i < 50 && (ref.get() != null || cache.size() > 0); i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assert.assertNull(ref.get());
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.sizeInBytes());
+    }
+}
@@ -0,0 +1,107 @@
+package org.chobit.bitmap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author robin
+ */
+public class ConcurrentExtRoaringBitmapTest {
+
+
+    private static final long BOUNDARY = RoaringUnit.maxSize();
+
+
+    @Test
+    public void basic() {
+        ConcurrentExtRoaringBitmap bitmap = new ConcurrentExtRoaringBitmap();
+        Assert.assertTrue(bitmap.isEmpty());
+        bitmap.add(BOUNDARY * 5 + 3);
+        bitmap.add(7L);
+        bitmap.add(BOUNDARY - 2, BOUNDARY + 2);
+        Assert.assertEquals(3, bitmap.unitsLength());
+        Assert.assertEquals(6, bitmap.cardinality());
+        Assert.assertEquals(7L, bitmap.first());
+        Assert.assertEquals(BOUNDARY * 5 + 3, bitmap.last());
+        Assert.assertTrue(bitmap.check(BOUNDARY + 1));
+        Assert.assertFalse(bitmap.check(BOUNDARY + 2));
+        Assert.assertFalse(bitmap.check(-1L));
+
+        bitmap.remove(7L);
+        bitmap.remove(BOUNDARY - 1, BOUNDARY + 1);
+        Assert.assertEquals(3, bitmap.cardinality());
+
+        ExtRoaringBitmap expected = new ExtRoaringBitmap();
+        expected.add(BOUNDARY - 2);
+        expected.add(BOUNDARY + 1);
+        expected.add(BOUNDARY * 5 + 3);
+        Assert.assertEquals(expected, bitmap.toExtRoaringBitmap());
+    }
+
+
+    @Test(timeout = 5000)
+    public void rangeAtEnd() {
+        ConcurrentExtRoaringBitmap bitmap = new ConcurrentExtRoaringBitmap();
+        bitmap.add(Long.MAX_VALUE - 5, Long.MAX_VALUE);
+        Assert.assertEquals(5, bitmap.cardinality());
+        Assert.assertEquals(Long.MAX_VALUE - 1, bitmap.last());
+
+        bitmap.remove(Long.MAX_VALUE - 3, Long.MAX_VALUE);
+        Assert.assertEquals(2, bitmap.cardinality());
+    }
+
+
+    @Test
+    public void concurrentWrite() throws Exception {
+        int threads = 8;
+        int perThread = 20000;
+        ConcurrentExtRoaringBitmap bitmap = new ConcurrentExtRoaringBitmap();
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        AtomicBoolean running = new AtomicBoolean(true);
+        try {
+            bitmap.add(BOUNDARY * 3 - 1);
+            Future<?> reader = executor.submit(() -> {
+                // 与写入并发的读取不能抛出异常，已存在的值一定能读到
+                long i = 0;
+                while (running.get()) {
+                    bitmap.check(BOUNDARY * 3 + i++ % (perThread * threads));
+                    if (!bitmap.check(BOUNDARY * 3 - 1)) {
+                        throw new IllegalStateException();
+                    }
+                }
+            });
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int id = t;
+                writers.add(executor.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        // 一半写入各自的单元，一半写入共享的单元
+                        bitmap.add(BOUNDARY * (id + 1) * 2 + i);
+                        bitmap.add(BOUNDARY * 3 + (long) i * threads + id);
+                    }
+                }));
+            }
+            for (Future<?> writer : writers) {
+                writer.get(30, TimeUnit.SECONDS);
+            }
+            running.set(false);
+            reader.get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assert.assertEquals((long) threads * perThread * 2 + 1, bitmap.cardinality());
+        for (int t = 0; t < threads; t++) {
+            Assert.assertTrue(bitmap.check(BOUNDARY * (t + 1) * 2 + perThread - 1));
+        }
+        Assert.assertEquals(bitmap.cardinality(), bitmap.toExtRoaringBitmap().cardinality());
+    }
+}
@@ -0,0 +1,97 @@
+package org.chobit.bitmap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * @author robin
+ */
+public class ExtBitmapsTest {
+
+
+    private static final long BOUNDARY = RoaringUnit.maxSize();
+
+
+    private List<ExtRoaringBitmap> bitmaps() {
+        List<ExtRoaringBitmap> list = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ExtRoaringBitmap bitmap = new ExtRoaringBitmap();
+            bitmap.add(i, 10 + i);
+            bitmap.add(BOUNDARY * (i + 1) + 3);
+            bitmap.add(BOUNDARY * 10 + i, BOUNDARY * 10 + 20);
+            list.add(bitmap);
+        }
+        return list;
+    }
+
+
+    @Test
+    public void or() {
+        List<ExtRoaringBitmap> list = bitmaps();
+        ExtRoaringBitmap expected = list.get(0);
+        for (ExtRoaringBitmap bitmap : list) {
+            expected = expected.or(bitmap);
+        }
+        ExtRoaringBitmap result = ExtBitmaps.or(list);
+        Assert.assertEquals(expected, result);
+        Assert.assertEquals(14 + 5 + 20, result.cardinality());
+    }
+
+
+    @Test
+    public void and() {
+        List<ExtRoaringBitmap> list = bitmaps();
+        ExtRoaringBitmap expected = list.get(0);
+        for (ExtRoaringBitmap bitmap : list) {
+            expected = expected.and(bitmap);
+        }
+        ExtRoaringBitmap result = ExtBitmaps.and(list);
+        Assert.assertEquals(expected.cardinality(), result.cardinality());
+        Assert.assertEquals(6 + 16, result.cardinality());
+    }
+
+
+    @Test
+    public void xor() {
+        List<ExtRoaringBitmap> list = bitmaps();
+        ExtRoaringBitmap expected = list.get(0);
+        for (int i = 1; i < list.size(); i++) {
+            expected = expected.xor(list.get(i));
+        }
+        Assert.assertEquals(expected, ExtBitmaps.xor(list));
+    }
+
+
+    @Test
+    public void parallel() {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<ExtRoaringBitmap> list = bitmaps();
+            Assert.assertEquals(ExtBitmaps.or(list), ExtBitmaps.or(list, executor));
+            Assert.assertEquals(ExtBitmaps.and(list).cardinality(), ExtBitmaps.and(list, executor).cardinality());
+            Assert.assertEquals(ExtBitmaps.xor(list), ExtBitmaps.xor(list, executor));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+
+    @Test
+    public void single() {
+        ExtRoaringBitmap bitmap = new ExtRoaringBitmap();
+        bitmap.add(5L);
+        ExtRoaringBitmap or = ExtBitmaps.or(bitmap);
+        ExtRoaringBitmap and = ExtBitmaps.and(bitmap);
+        ExtRoaringBitmap xor = ExtBitmaps.xor(bitmap);
+        or.add(6L);
+        and.add(7L);
+        xor.add(8L);
+        Assert.assertEquals(1, bitmap.cardinality());
+        Assert.assertEquals(0, ExtBitmaps.or().cardinality());
+    }
+}
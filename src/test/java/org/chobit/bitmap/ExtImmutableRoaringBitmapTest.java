@@ -0,0 +1,86 @@
+package org.chobit.bitmap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * @author robin
+ */
+public class ExtImmutableRoaringBitmapTest {
+
+
+    private static final long BOUNDARY = RoaringUnit.maxSize();
+
+
+    private ExtRoaringBitmap bitmap1() {
+        ExtRoaringBitmap bitmap = new ExtRoaringBitmap();
+        bitmap.add(1L, 10L);
+        bitmap.add(BOUNDARY * 3 + 5);
+        bitmap.add(BOUNDARY * 8, BOUNDARY * 8 + 100000);
+        return bitmap;
+    }
+
+
+    private ExtRoaringBitmap bitmap2() {
+        ExtRoaringBitmap bitmap = new ExtRoaringBitmap();
+        bitmap.add(5L, 15L);
+        bitmap.add(BOUNDARY * 2 + 1);
+        bitmap.add(BOUNDARY * 8 + 50000, BOUNDARY * 8 + 200000);
+        return bitmap;
+    }
+
+
+    @Test
+    public void map() throws IOException {
+        ExtRoaringBitmap b1 = bitmap1();
+        Path file = Files.createTempFile("ext-bitmap", ".bin");
+        try {
+            Files.write(file, b1.toBytes());
+            ExtImmutableRoaringBitmap immutable = ExtImmutableRoaringBitmap.map(file);
+
+            Assert.assertEquals(b1.cardinality(), immutable.cardinality());
+            Assert.assertEquals(b1.first(), immutable.first());
+            Assert.assertEquals(b1.last(), immutable.last());
+            Assert.assertTrue(immutable.check(BOUNDARY * 3 + 5));
+            Assert.assertFalse(immutable.check(BOUNDARY * 3 + 6));
+            Assert.assertFalse(immutable.check(-1L));
+            Assert.assertEquals(b1, immutable.toExtRoaringBitmap());
+
+            LongIterator expected = b1.longIterator();
+            LongIterator actual = immutable.longIterator();
+            while (expected.hasNext()) {
+                Assert.assertTrue(actual.hasNext());
+                Assert.assertEquals(expected.next(), actual.next());
+            }
+            Assert.assertFalse(actual.hasNext());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+
+    @Test
+    public void operations() throws IOException {
+        ExtRoaringBitmap b1 = bitmap1();
+        ExtRoaringBitmap b2 = bitmap2();
+        ExtImmutableRoaringBitmap i1 = new ExtImmutableRoaringBitmap(ByteBuffer.wrap(b1.toBytes()));
+        ExtImmutableRoaringBitmap i2 = new ExtImmutableRoaringBitmap(ByteBuffer.wrap(b2.toBytes()));
+
+        Assert.assertEquals(b1.and(b2).cardinality(), i1.and(i2).cardinality());
+        Assert.assertEquals(b1.or(b2), i1.or(i2));
+        Assert.assertEquals(b1.xor(b2), i1.xor(i2));
+        Assert.assertEquals(b1.andNot(b2), i1.andNot(i2));
+    }
+
+
+    @Test(expected = IOException.class)
+    public void truncated() throws IOException {
+        byte[] bytes = bitmap1().toBytes();
+        new ExtImmutableRoaringBitmap(ByteBuffer.wrap(bytes, 0, bytes.length - 1));
+    }
+}
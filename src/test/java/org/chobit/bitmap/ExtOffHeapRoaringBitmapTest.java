@@ -0,0 +1,282 @@
+package org.chobit.bitmap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @author robin
+ */
+public class ExtOffHeapRoaringBitmapTest {
+
+
+    private static final long BOUNDARY = RoaringUnit.maxSize();
+
+
+    @Test
+    public void mutate() {
+        try (ExtOffHeapRoaringBitmap bitmap = new ExtOffHeapRoaringBitmap()) {
+            ExtRoaringBitmap expected = new ExtRoaringBitmap();
+            for (long i = 0; i < 10000; i += 3) {
+                bitmap.add(i);
+                bitmap.add(BOUNDARY * 2 + i);
+                expected.add(i);
+                expected.add(BOUNDARY * 2 + i);
+            }
+            bitmap.remove(9L);
+            expected.remove(9L);
+            bitmap.add(BOUNDARY + 10, BOUNDARY + 20);
+            expected.add(BOUNDARY + 10, BOUNDARY + 20);
+
+            Assert.assertEquals(expected.cardinality(), bitmap.cardinality());
+            Assert.assertEquals(expected.size(), bitmap.size());
+            Assert.assertEquals(expected.last(), bitmap.last());
+            Assert.assertTrue(bitmap.check(BOUNDARY * 2 + 9));
+            Assert.assertFalse(bitmap.check(9L));
+            Assert.assertTrue(bitmap.offHeapSizeInBytes() > 0);
+
+            LongIterator e = expected.longIterator();
+            LongIterator a = bitmap.longIterator();
+            while (e.hasNext()) {
+                Assert.assertTrue(a.hasNext());
+                Assert.assertEquals(e.next(), a.next());
+            }
+            Assert.assertFalse(a.hasNext());
+        }
+    }
+
+
+    @Test
+    public void operation() {
+        try (ExtOffHeapRoaringBitmap b1 = new ExtOffHeapRoaringBitmap();
+             ExtOffHeapRoaringBitmap b2 = new ExtOffHeapRoaringBitmap()) {
+            b1.add(1L, 10L);
+            b1.add(BOUNDARY * 3 + 5);
+            b2.add(5L, 15L);
+            b2.add(BOUNDARY * 3 + 5);
+
+            try (ExtOffHeapRoaringBitmap and = b1.and(b2);
+                 ExtOffHeapRoaringBitmap or = b1.or(b2)) {
+                Assert.assertEquals(6, and.cardinality());
+                Assert.assertEquals(15, or.cardinality());
+                Assert.assertEquals(6, b1.andCardinality(b2));
+            }
+        }
+    }
+
+
+    @Test
+    public void serialize() throws IOException {
+        ExtRoaringBitmap heap = new ExtRoaringBitmap();
+        heap.add(1L, 1000L);
+        heap.add(BOUNDARY * 5 + 7);
+
+        try (ExtOffHeapRoaringBitmap offHeap = new ExtOffHeapRoaringBitmap()) {
+            offHeap.fromBytes(heap.toBytes());
+            Assert.assertEquals(heap.cardinality(), offHeap.cardinality());
+            Assert.assertTrue(offHeap.check(BOUNDARY * 5 + 7));
+
+            offHeap.add(2000L);
+            ExtRoaringBitmap back = new ExtRoaringBitmap();
+            back.fromBytes(offHeap.toBytes());
+            heap.add(2000L);
+            Assert.assertEquals(heap, back);
+        }
+    }
+
+
+    @Test
+    public void close() {
+        long before = ExtOffHeapRoaringBitmap.totalOffHeapBytes();
+        ExtOffHeapRoaringBitmap bitmap = new ExtOffHeapRoaringBitmap();
+        bitmap.add(1L, 100000L);
+        Assert.assertTrue(ExtOffHeapRoaringBitmap.totalOffHeapBytes() > before);
+
+        bitmap.close();
+        Assert.assertEquals(0, bitmap.offHeapSizeInBytes());
+        Assert.assertEquals(before, ExtOffHeapRoaringBitmap.totalOffHeapBytes());
+        try {
+            bitmap.check(1L);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+
+    @Test
+    public void rangeAndBatch() {
+        try (ExtOffHeapRoaringBitmap bitmap = new ExtOffHeapRoaringBitmap()) {
+            ExtRoaringBitmap expected = new ExtRoaringBitmap();
+            bitmap.add(0L, 200000L);
+            expected.add(0L, 200000L);
+            bitmap.flush();
+
+            bitmap.remove(1000L, 150000L);
+            expected.remove(1000L, 150000L);
+            bitmap.add(100000L, 120000L);
+            expected.add(100000L, 120000L);
+            bitmap.remove(BOUNDARY - 10, BOUNDARY + 10);
+            expected.remove(BOUNDARY - 10, BOUNDARY + 10);
+
+            long[] values = {5L, 110000L, 130000L, BOUNDARY + 3, BOUNDARY * 2 + 1, 130000L};
+            bitmap.addMany(values, 0, values.length);
+            for (long v : values) {
+                expected.add(v);
+            }
+            bitmap.remove(130000L);
+            expected.remove(130000L);
+
+            Assert.assertEquals(expected.cardinality(), bitmap.cardinality());
+            Assert.assertEquals(expected.size(), bitmap.size());
+            ExtRoaringBitmap back = new ExtRoaringBitmap();
+            back.fromBytes(bitmap.toBytes());
+            Assert.assertEquals(expected, back);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    @Test
+    public void serializeWithoutFlush() throws IOException {
+        OffHeapRoaringUnit unit = new OffHeapRoaringUnit();
+        unit.add(1L, 10L);
+        unit.flush();
+        long offHeapSize = unit.offHeapSizeInBytes();
+        unit.add(100L);
+        unit.remove(5L);
+
+        byte[] bytes = unit.toBytes();
+        Assert.assertEquals(bytes.length, unit.serializedSizeInBytes());
+        Assert.assertEquals(offHeapSize, unit.offHeapSizeInBytes());
+
+        RoaringUnit expected = new RoaringUnit();
+        expected.add(1L, 10L);
+        expected.add(100L);
+        expected.remove(5L);
+        Assert.assertEquals(expected, new RoaringUnit().fromBytes(bytes));
+        unit.close();
+    }
+
+
+    @Test
+    public void iteratorAfterFlush() {
+        OffHeapRoaringUnit unit = new OffHeapRoaringUnit();
+        unit.add(1L, 10L);
+        unit.flush();
+        LongIterator itr = unit.longIterator();
+        Assert.assertEquals(1L, itr.next());
+
+        unit.add(100L);
+        unit.flush();
+        long count = 1;
+        while (itr.hasNext()) {
+            itr.next();
+            count++;
+        }
+        Assert.assertEquals(9, count);
+        Assert.assertEquals(10, unit.cardinality());
+
+        long offHeapSize = unit.offHeapSizeInBytes();
+        unit.add(200L);
+        Assert.assertEquals(1L, unit.first());
+        Assert.assertEquals(200L, unit.last());
+        OffHeapRoaringUnit copy = unit.copy();
+        Assert.assertEquals(11, copy.cardinality());
+        copy.close();
+        Assert.assertEquals(offHeapSize, unit.offHeapSizeInBytes());
+
+        long before = OffHeapRoaringUnit.offHeapBytes();
+        LongIterator closed = unit.longIterator();
+        unit.close();
+        Assert.assertEquals(before - offHeapSize, OffHeapRoaringUnit.offHeapBytes());
+        count = 0;
+        while (closed.hasNext()) {
+            closed.next();
+            count++;
+        }
+        Assert.assertEquals(11, count);
+    }
+
+
+    @Test
+    public void snapshot() throws Exception {
+        try (ExtOffHeapRoaringBitmap bitmap = new ExtOffHeapRoaringBitmap()) {
+            for (long i = 0; i < 1000; i++) {
+                bitmap.add(i * 7);
+            }
+            ExtOffHeapRoaringBitmap snapshot = bitmap.snapshot();
+            ExtRoaringBitmap expected = new ExtRoaringBitmap();
+            expected.fromBytes(snapshot.toBytes());
+
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                Future<?> reader = executor.submit(() -> {
+                    for (int round = 0; round < 50; round++) {
+                        Assert.assertEquals(1000, snapshot.cardinality());
+                        Assert.assertTrue(snapshot.check(6993L));
+                    }
+                });
+                for (long i = 0; i < 10000; i++) {
+                    bitmap.add(i * 7 + 1);
+                    bitmap.check(i);
+                }
+                reader.get();
+            } finally {
+                executor.shutdown();
+            }
+
+            ExtRoaringBitmap back = new ExtRoaringBitmap();
+            back.fromBytes(snapshot.toBytes());
+            Assert.assertEquals(expected, back);
+            Assert.assertEquals(11000, bitmap.cardinality());
+        }
+    }
+
+
+    @Test
+    public void closeReleasesAllUnits() {
+        long before = ExtOffHeapRoaringBitmap.totalOffHeapBytes();
+        ExtOffHeapRoaringBitmap a = new ExtOffHeapRoaringBitmap();
+        ExtOffHeapRoaringBitmap b = new ExtOffHeapRoaringBitmap();
+        a.add(1L);
+        a.add(BOUNDARY * 2 + 1);
+        a.add(BOUNDARY * 4 + 1);
+        b.add(1L);
+        b.add(BOUNDARY * 3 + 1);
+
+        ExtOffHeapRoaringBitmap snapshot = a.snapshot();
+        a.add(5L);
+        try (ExtOffHeapRoaringBitmap and = a.and(b);
+             ExtOffHeapRoaringBitmap or = a.or(b);
+             ExtOffHeapRoaringBitmap xor = a.xor(b);
+             ExtOffHeapRoaringBitmap not = a.not()) {
+            Assert.assertEquals(1, and.cardinality());
+            Assert.assertEquals(5, or.cardinality());
+            Assert.assertEquals(4, xor.cardinality());
+            Assert.assertFalse(not.check(5L));
+        }
+        OffHeapRoaringUnit unit = new OffHeapRoaringUnit();
+        unit.add(7L);
+        try (ExtOffHeapRoaringBitmap or = a.orWithIndex(9, unit)) {
+            Assert.assertTrue(or.check(BOUNDARY * 9 + 7));
+        }
+        unit.close();
+
+        a.andInPlace(b);
+        a.orInPlace(b);
+        Assert.assertEquals(2, a.cardinality());
+        Assert.assertEquals(3, snapshot.cardinality());
+
+        a.close();
+        b.close();
+        Assert.assertTrue(snapshot.check(BOUNDARY * 4 + 1));
+        snapshot.close();
+        Assert.assertEquals(before, ExtOffHeapRoaringBitmap.totalOffHeapBytes());
+    }
+}
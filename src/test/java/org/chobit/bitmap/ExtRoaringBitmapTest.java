@@ -4,6 +4,16 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.stream.StreamSupport;
 
 /**
  * @author robin
@@ -325,11 +335,864 @@ public class ExtRoaringBitmapTest {
     }
 
 
+    @Test
+    public void sparseUnits() throws IOException {
+        long value = 1000000000000000L;
+        ExtRoaringBitmap b1 = new ExtRoaringBitmap();
+        b1.add(3L);
+        b1.add(value);
+        b1.add(value + 5);
+
+        Assert.assertEquals(2, b1.unitsLength());
+        Assert.assertEquals(3, b1.cardinality());
+        Assert.assertEquals(3L, b1.first());
+        Assert.assertEquals(value + 5, b1.last());
+        Assert.assertTrue(b1.check(value));
+        Assert.assertFalse(b1.check(value - 1));
+
+        ExtRoaringBitmap b2 = new ExtRoaringBitmap();
+        b2.add(value + 5);
+        b2.add(value * 2);
+        Assert.assertEquals(1, b1.and(b2).cardinality());
+        Assert.assertEquals(4, b1.or(b2).cardinality());
+        Assert.assertEquals(3, b1.or(b2).unitsLength());
+
+        ExtRoaringBitmap b3 = new ExtRoaringBitmap().fromBytes(b1.toBytes());
+        Assert.assertEquals(b1, b3);
+        Assert.assertEquals(2, b3.unitsLength());
+    }
+
+
+    @Test
+    public void deserializeLegacy() throws IOException {
+        RoaringUnit u0 = new RoaringUnit();
+        u0.add(5L);
+        RoaringUnit u1 = new RoaringUnit();
+        u1.add(7L);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        u0.serialize(out);
+        out.writeInt(0);
+        u1.serialize(out);
+        out.writeInt(1);
+
+        ExtRoaringBitmap bitmap = new ExtRoaringBitmap().fromBytes(bos.toByteArray());
+        Assert.assertEquals(2, bitmap.cardinality());
+        Assert.assertTrue(bitmap.check(5L));
+        Assert.assertTrue(bitmap.check(Integer.MAX_VALUE + 7L));
+
+        // 截断在单元数据中间时不能被当作正常结束
+        byte[] bytes = bos.toByteArray();
+        for (int cut : new int[]{bytes.length - 2, bytes.length - 6, bytes.length - 9}) {
+            try {
+                new ExtRoaringBitmap().fromBytes(Arrays.copyOf(bytes, cut));
+                Assert.fail();
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+
+    @Test
+    public void unitBoundary() {
+        long boundary = RoaringUnit.maxSize();
+        ExtRoaringBitmap bitmap = new ExtRoaringBitmap();
+        bitmap.add(boundary - 2, boundary + 1);
+        bitmap.add(Long.MAX_VALUE);
+
+        Assert.assertEquals(4, bitmap.cardinality());
+        Assert.assertTrue(bitmap.check(boundary - 1));
+        Assert.assertTrue(bitmap.check(boundary));
+        Assert.assertFalse(bitmap.check(boundary + 1));
+        Assert.assertEquals(boundary - 2, bitmap.first());
+        Assert.assertEquals(Long.MAX_VALUE, bitmap.last());
+        Assert.assertFalse(bitmap.check(-1L));
+
+        long[] expected = {boundary - 2, boundary - 1, boundary, Long.MAX_VALUE};
+        LongIterator itr = bitmap.longIterator();
+        for (long v : expected) {
+            Assert.assertTrue(itr.hasNext());
+            Assert.assertEquals(v, itr.next());
+        }
+        Assert.assertFalse(itr.hasNext());
+    }
+
+
+    @Test
+    public void emptyResultUnits() {
+        long boundary = RoaringUnit.maxSize();
+        ExtRoaringBitmap x = new ExtRoaringBitmap();
+        x.add(1L);
+        x.add(boundary + 1);
+        ExtRoaringBitmap y = new ExtRoaringBitmap();
+        y.add(1L);
+        y.add(boundary + 2);
+        ExtRoaringBitmap expected = new ExtRoaringBitmap();
+        expected.add(1L);
+
+        ExtRoaringBitmap and = x.and(y);
+        Assert.assertEquals(1, and.unitsLength());
+        Assert.assertEquals(expected, and);
+        Assert.assertEquals(1, x.andNot(y).unitsLength());
+        Assert.assertEquals(0, x.xor(x).unitsLength());
+
+        x.andInPlace(y);
+        Assert.assertEquals(expected, x);
+
+        x.add(boundary * 3 + 1);
+        x.add(boundary * 5 + 1);
+        x.remove(boundary * 3, boundary * 4);
+        Assert.assertEquals(2, x.cardinality());
+        Assert.assertTrue(x.check(boundary * 5 + 1));
+    }
+
+
+    @Test(timeout = 5000)
+    public void addRangeAtEnd() {
+        ExtRoaringBitmap bitmap = new ExtRoaringBitmap();
+        bitmap.add(Long.MAX_VALUE - 5, Long.MAX_VALUE);
+
+        Assert.assertEquals(5, bitmap.cardinality());
+        Assert.assertEquals(Long.MAX_VALUE - 5, bitmap.first());
+        Assert.assertEquals(Long.MAX_VALUE - 1, bitmap.last());
+        Assert.assertFalse(bitmap.check(Long.MAX_VALUE));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addNegative() {
+        new ExtRoaringBitmap().add(-1L);
+    }
+
+
+    @Test
+    public void addMany() {
+        long boundary = RoaringUnit.maxSize();
+        long[] values = {1L, 3L, boundary - 1, boundary + 2, 1024001002302L, 2L};
+        ExtRoaringBitmap bitmap = new ExtRoaringBitmap();
+        bitmap.addMany(values, 0, values.length - 1);
+
+        Assert.assertEquals(5, bitmap.cardinality());
+        Assert.assertFalse(bitmap.check(2L));
+
+        boolean[] results = new boolean[values.length];
+        bitmap.checkMany(values, results);
+        Assert.assertArrayEquals(new boolean[]{true, true, true, true, true, false}, results);
+        Assert.assertFalse(bitmap.containsAll(values));
+        Assert.assertTrue(bitmap.containsAll(new long[]{boundary + 2, 1L}));
+
+        // 含有负数时不写入任何值
+        ExtRoaringBitmap b1 = new ExtRoaringBitmap();
+        b1.add(1L);
+        long version = b1.version();
+        try {
+            b1.addMany(new long[]{5L, 10L, -3L}, 0, 3);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Assert.assertFalse(b1.check(10L));
+        Assert.assertEquals(1, b1.cardinality());
+        Assert.assertEquals(1L, b1.last());
+        Assert.assertEquals(version, b1.version());
+    }
+
+
+    @Test
+    public void inPlace() {
+        long boundary = RoaringUnit.maxSize();
+        ExtRoaringBitmap b1 = new ExtRoaringBitmap();
+        b1.add(1L, 10L);
+        b1.add(boundary * 2, boundary * 2 + 5);
+        ExtRoaringBitmap b2 = new ExtRoaringBitmap();
+        b2.add(5L, 15L);
+        b2.add(boundary + 1);
+        ExtRoaringBitmap b2Copy = b2.copy();
+
+        ExtRoaringBitmap and = b1.copy();
+        and.andInPlace(b2);
+        Assert.assertEquals(b1.and(b2), and);
+
+        ExtRoaringBitmap or = b1.copy();
+        or.orInPlace(b2);
+        Assert.assertEquals(b1.or(b2), or);
+        Assert.assertEquals(20, or.cardinality());
+
+        ExtRoaringBitmap xor = b1.copy();
+        xor.xorInPlace(b2);
+        Assert.assertEquals(b1.xor(b2), xor);
+
+        ExtRoaringBitmap andNot = b1.copy();
+        andNot.andNotInPlace(b2);
+        Assert.assertEquals(b1.andNot(b2), andNot);
+        Assert.assertEquals(9, andNot.cardinality());
+
+        or.add(boundary + 2);
+        Assert.assertEquals(b2Copy, b2);
+    }
+
+
+    @Test
+    public void parallel() {
+        long boundary = RoaringUnit.maxSize();
+        ExtRoaringBitmap b1 = new ExtRoaringBitmap();
+        ExtRoaringBitmap b2 = new ExtRoaringBitmap();
+        for (int i = 0; i < 40; i++) {
+            b1.add(boundary * i + i, boundary * i + 100);
+            if (i % 3 != 0) {
+                b2.add(boundary * i + 50, boundary * i + 150);
+            }
+        }
+        b2.add(boundary * 50 + 1);
+
+        int threshold = AbstractExtBitmap.getParallelThreshold();
+        try {
+            AbstractExtBitmap.setParallelThreshold(Integer.MAX_VALUE);
+            ExtRoaringBitmap and = b1.and(b2);
+            ExtRoaringBitmap or = b1.or(b2);
+            ExtRoaringBitmap xor = b1.xor(b2);
+            ExtRoaringBitmap andNot = b1.andNot(b2);
+            ExtRoaringBitmap copy = b1.copy();
+            long cardinality = b1.cardinality();
+
+            AbstractExtBitmap.setParallelThreshold(1);
+            Assert.assertEquals(and, b1.and(b2));
+            Assert.assertEquals(or, b1.or(b2));
+            Assert.assertEquals(xor, b1.xor(b2));
+            Assert.assertEquals(andNot, b1.andNot(b2));
+            Assert.assertEquals(copy, b1.copy());
+            Assert.assertEquals(cardinality, b1.cardinality());
+        } finally {
+            AbstractExtBitmap.setParallelThreshold(threshold);
+        }
+    }
+
+
+    @Test
+    public void operationCardinality() {
+        long boundary = RoaringUnit.maxSize();
+        ExtRoaringBitmap b1 = new ExtRoaringBitmap();
+        b1.add(1L, 10L);
+        b1.add(boundary * 3, boundary * 3 + 7);
+        ExtRoaringBitmap b2 = new ExtRoaringBitmap();
+        b2.add(5L, 15L);
+        b2.add(boundary * 2 + 1);
+
+        Assert.assertEquals(b1.and(b2).cardinality(), b1.andCardinality(b2));
+        Assert.assertEquals(b1.or(b2).cardinality(), b1.orCardinality(b2));
+        Assert.assertEquals(b1.xor(b2).cardinality(), b1.xorCardinality(b2));
+        Assert.assertEquals(b1.andNot(b2).cardinality(), b1.andNotCardinality(b2));
+        Assert.assertEquals(b2.andNot(b1).cardinality(), b2.andNotCardinality(b1));
+        Assert.assertTrue(b1.intersects(b2));
+
+        b2.remove(5L, 10L);
+        Assert.assertFalse(b1.intersects(b2));
+        Assert.assertEquals(0, b1.andCardinality(b2));
+        ExtRoaringBitmap full1 = new ExtRoaringBitmap();
+        full1.add(0L, boundary);
+        ExtRoaringBitmap full2 = new ExtRoaringBitmap();
+        full2.add(0L, boundary * 2);
+        Assert.assertEquals(boundary, full1.andCardinality(full2));
+        Assert.assertEquals(boundary * 2, full1.orCardinality(full2));
+        Assert.assertEquals(boundary, full1.xorCardinality(full2));
+        Assert.assertEquals(0, full1.andNotCardinality(full2));
+
+        try (ExtOffHeapRoaringBitmap offHeap1 = new ExtOffHeapRoaringBitmap();
+             ExtOffHeapRoaringBitmap offHeap2 = new ExtOffHeapRoaringBitmap()) {
+            offHeap1.add(0L, boundary);
+            offHeap2.add(0L, boundary);
+            Assert.assertEquals(boundary, offHeap1.andCardinality(offHeap2));
+            Assert.assertEquals(boundary, offHeap1.orCardinality(offHeap2));
+        }
+    }
+
+
+    @Test
+    public void serialHeader() throws IOException {
+        long boundary = RoaringUnit.maxSize();
+        ExtRoaringBitmap b1 = new ExtRoaringBitmap();
+        b1.add(1L, 6L);
+        b1.add(boundary * 7 + 3);
+        b1.add(boundary * 9, boundary * 9 + 100);
+
+        byte[] bytes = b1.toBytes();
+        Assert.assertEquals(bytes.length, b1.serializedSizeInBytes());
+
+        ExtBitmapHeader header = ExtBitmapHeader.read(ByteBuffer.wrap(bytes));
+        Assert.assertEquals(3, header.unitCount());
+        Assert.assertEquals(106, header.cardinality());
+        Assert.assertEquals(1, header.cardinalityAt(header.indexOf(7)));
+        Assert.assertEquals(bytes.length, header.headerSize() + header.dataSize());
+
+        RoaringUnit unit = b1.deserializeUnit(bytes, header, 9);
+        Assert.assertEquals(100, unit.cardinality());
+        Assert.assertNull(b1.deserializeUnit(bytes, header, 8));
+
+        ExtRoaringBitmap b2 = new ExtRoaringBitmap().fromBytes(bytes);
+        Assert.assertEquals(b1, b2);
+    }
+
+
+    @Test(expected = IOException.class)
+    public void deserializeCorrupt() throws IOException {
+        ExtRoaringBitmap b1 = new ExtRoaringBitmap();
+        b1.add(1L, 6L);
+        b1.add(RoaringUnit.maxSize() * 3);
+        byte[] bytes = b1.toBytes();
+        new ExtRoaringBitmap().fromBytes(Arrays.copyOf(bytes, bytes.length - 3));
+    }
+
+
+    @Test
+    public void deserializeEmptyOrTruncatedCookie() {
+        byte[][] inputs = {new byte[0], {(byte) 0xCA, (byte) 0xFE}};
+        for (byte[] input : inputs) {
+            try {
+                new ExtRoaringBitmap().fromBytes(input);
+                Assert.fail();
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+
+    @Test
+    public void deserializeCorruptCount() throws IOException {
+        // 单元数量远大于实际数据时应尽快失败，而不是按照单元数量一次性分配索引表
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(ExtBitmapHeader.SERIAL_COOKIE);
+        out.writeByte(ExtBitmapHeader.SERIAL_VERSION_2);
+        out.writeByte(RoaringUnit.UNIT_BITS);
+        out.writeInt(Integer.MAX_VALUE);
+        try {
+            new ExtRoaringBitmap().deserialize(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+
+        bos.reset();
+        out.writeInt(ExtBitmapHeader.SERIAL_COOKIE);
+        out.writeByte(1);
+        out.writeByte(RoaringUnit.UNIT_BITS);
+        out.writeInt(0);
+        try {
+            new ExtRoaringBitmap().fromBytes(bos.toByteArray());
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+
+    @Test
+    public void channelReadFailure() throws IOException {
+        ExtRoaringBitmap b1 = new ExtRoaringBitmap();
+        b1.add(1L, 1000L);
+        byte[] bytes = b1.toBytes();
+        byte[] corrupt = bytes.clone();
+        // 单元索引表中第一项的基数
+        ByteBuffer.wrap(corrupt).putLong(ExtBitmapHeader.FIXED_SIZE + 4 + 8 + 4, 12345L);
+
+        Path file = Files.createTempFile("ext-bitmap", ".bin");
+        try {
+            Files.write(file, corrupt);
+            Files.write(file, bytes, StandardOpenOption.APPEND);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                try {
+                    new ExtRoaringBitmap().readFrom(channel);
+                    Assert.fail();
+                } catch (IOException e) {
+                    // expected
+                }
+                // 读取失败时预读的数据同样退回channel
+                Assert.assertEquals(corrupt.length, channel.position());
+                ExtRoaringBitmap r1 = new ExtRoaringBitmap();
+                r1.readFrom(channel);
+                Assert.assertEquals(b1, r1);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+
+    @Test(timeout = 10000)
+    public void channelNoProgress() throws IOException {
+        ReadableByteChannel idle = new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) {
+                return 0;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        try {
+            new ExtRoaringBitmap().readFrom(idle);
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+
+        Pipe pipe = Pipe.open();
+        try {
+            pipe.source().configureBlocking(false);
+            try {
+                new ExtRoaringBitmap().readFrom(pipe.source());
+                Assert.fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            pipe.sink().configureBlocking(false);
+            try {
+                new ExtRoaringBitmap().writeTo(pipe.sink());
+                Assert.fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        } finally {
+            pipe.source().close();
+            pipe.sink().close();
+        }
+    }
+
+
+    @Test
+    public void channel() throws IOException {
+        ExtRoaringBitmap b1 = new ExtRoaringBitmap();
+        b1.add(1L, 100000L);
+        b1.add(RoaringUnit.maxSize() * 3 + 7);
+        ExtRoaringBitmap b2 = new ExtRoaringBitmap();
+        b2.add(RoaringUnit.maxSize() * 5, RoaringUnit.maxSize() * 5 + 10);
+
+        Path file = Files.createTempFile("ext-bitmap", ".bin");
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                b1.writeTo(channel, buffer);
+                b2.writeTo(channel, buffer);
+            }
+            Assert.assertEquals(b1.serializedSizeInBytes() + b2.serializedSizeInBytes(), Files.size(file));
+            Assert.assertArrayEquals(b1.toBytes(), Arrays.copyOf(Files.readAllBytes(file), b1.toBytes().length));
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ExtRoaringBitmap r1 = new ExtRoaringBitmap();
+                r1.readFrom(channel);
+                Assert.assertEquals(b1.serializedSizeInBytes(), channel.position());
+                ExtRoaringBitmap r2 = new ExtRoaringBitmap();
+                r2.readFrom(channel, buffer);
+                Assert.assertEquals(b1, r1);
+                Assert.assertEquals(b2, r2);
+            }
+
+            RoaringUnit unit = new RoaringUnit();
+            unit.add(3L, 5000L);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                unit.writeTo(channel);
+            }
+            RoaringUnit read = new RoaringUnit();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                read.readFrom(channel);
+            }
+            Assert.assertEquals(unit, read);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+
+    @Test
+    public void optimize() throws IOException {
+        ExtRoaringBitmap b1 = new ExtRoaringBitmap();
+        for (long i = 0; i < 10000; i++) {
+            b1.add(RoaringUnit.maxSize() + i);
+        }
+        RoaringUnit unit = b1.units().get(1);
+        Assert.assertFalse(unit.bitmap().hasRunCompression());
+
+        byte[] bytes = b1.toBytes();
+        Assert.assertEquals(bytes.length, b1.serializedSizeInBytes());
+        Assert.assertFalse(unit.bitmap().hasRunCompression());
+
+        Assert.assertTrue(b1.runOptimize());
+        Assert.assertTrue(unit.bitmap().hasRunCompression());
+        Assert.assertTrue(b1.toBytes().length < bytes.length);
+        Assert.assertEquals(b1, new ExtRoaringBitmap().fromBytes(bytes));
+
+        ExtRoaringBitmap b2 = new ExtRoaringBitmap();
+        b2.setAutoOptimizeThreshold(1000);
+        for (long i = 0; i < 999; i++) {
+            b2.add(i);
+        }
+        Assert.assertFalse(b2.units().get(0).bitmap().hasRunCompression());
+        b2.add(999L);
+        Assert.assertTrue(b2.units().get(0).bitmap().hasRunCompression());
+    }
+
+
+    @Test
+    public void sizeInBytes() {
+        ExtRoaringBitmap b1 = new ExtRoaringBitmap();
+        long empty = b1.getSizeInBytes();
+        Assert.assertTrue(empty > 0);
+
+        b1.add(RoaringUnit.maxSize() * 100);
+        Assert.assertEquals(RoaringUnit.maxSize() * 100 + 1, b1.size());
+        long sparse = b1.getSizeInBytes();
+        Assert.assertTrue(sparse > empty && sparse < 1024);
+
+        for (long i = 0; i < 100000; i += 2) {
+            b1.add(i);
+        }
+        RoaringUnit unit = b1.units().get(0);
+        Assert.assertTrue(b1.getSizeInBytes() > sparse + unit.bitmap().getLongSizeInBytes());
+    }
+
+
+    @Test
+    public void snapshot() {
+        ExtRoaringBitmap b1 = new ExtRoaringBitmap();
+        b1.add(1L, 100L);
+        b1.add(RoaringUnit.maxSize() * 2 + 5);
+        b1.add(RoaringUnit.maxSize() * 4 + 5);
+        ExtRoaringBitmap expected = b1.copy();
+
+        ExtRoaringBitmap snapshot = b1.snapshot();
+        Assert.assertSame(b1.units().get(2), snapshot.units().get(2));
+
+        long version = b1.version();
+        Assert.assertFalse(b1.checkedAdd(RoaringUnit.maxSize() * 4 + 5));
+        Assert.assertFalse(b1.checkedRemove(RoaringUnit.maxSize() * 4 + 6));
+        b1.runOptimize();
+        b1.trim();
+        Assert.assertSame(b1.units().get(4), snapshot.units().get(4));
+        Assert.assertEquals(version, b1.version());
+
+        b1.add(RoaringUnit.maxSize() * 2 + 6);
+        b1.remove(50L);
+        b1.add(RoaringUnit.maxSize() * 6);
+        b1.orInPlace(expected);
+        b1.runOptimize();
+        Assert.assertEquals(expected, snapshot);
+        Assert.assertEquals(expected.size(), snapshot.size());
+        Assert.assertNotSame(b1.units().get(2), snapshot.units().get(2));
+        Assert.assertTrue(b1.check(RoaringUnit.maxSize() * 2 + 6));
+        Assert.assertTrue(b1.check(50L));
+
+        snapshot.add(RoaringUnit.maxSize() * 4 + 6);
+        Assert.assertFalse(b1.check(RoaringUnit.maxSize() * 4 + 6));
+        Assert.assertEquals(expected.cardinality() + 1, snapshot.cardinality());
+    }
+
+
+    @Test
+    public void cachedStatistics() {
+        java.util.Random random = new java.util.Random(42);
+        ExtRoaringBitmap b1 = new ExtRoaringBitmap();
+        Assert.assertEquals(-1, b1.first());
+        Assert.assertEquals(0, b1.cardinality());
+        for (int n = 0; n < 20000; n++) {
+            long v = RoaringUnit.maxSize() * random.nextInt(4) + random.nextInt(1000);
+            switch (random.nextInt(10)) {
+                case 0:
+                    b1.add(v, v + random.nextInt(50) + 1);
+                    break;
+                case 1:
+                    b1.remove(v, v + random.nextInt(50) + 1);
+                    break;
+                case 2:
+                case 3:
+                case 4:
+                    Assert.assertEquals(b1.check(v), b1.checkedRemove(v));
+                    break;
+                default:
+                    Assert.assertEquals(!b1.check(v), b1.checkedAdd(v));
+            }
+            if (n % 97 == 0) {
+                LongIterator itr = b1.longIterator();
+                Assert.assertEquals(itr.hasNext() ? itr.next() : -1, b1.first());
+                Assert.assertEquals(sum(b1), b1.cardinality());
+                Assert.assertEquals(b1.copy().cardinality(), b1.cardinality());
+            }
+        }
+        ExtRoaringBitmap snapshot = b1.snapshot();
+        Assert.assertEquals(sum(b1), snapshot.cardinality());
+        Assert.assertEquals(b1.last(), snapshot.last());
+    }
+
+
+    @Test
+    public void rankSelect() {
+        long boundary = RoaringUnit.maxSize();
+        ExtRoaringBitmap b1 = new ExtRoaringBitmap();
+        b1.add(1L, 1001L);
+        b1.extend(boundary * 3);
+        b1.add(boundary * 3 + 5);
+        b1.add(boundary * 5 - 1);
+        b1.add(boundary * 7, boundary * 7 + 100);
+
+        long[] values = new long[(int) b1.cardinality()];
+        LongIterator itr = b1.longIterator();
+        for (int i = 0; itr.hasNext(); i++) {
+            values[i] = itr.next();
+        }
+        for (int j = 0; j < values.length; j++) {
+            Assert.assertEquals(values[j], b1.select(j));
+            Assert.assertEquals(j + 1, b1.rank(values[j]));
+            Assert.assertEquals(j, b1.rank(values[j] - 1));
+        }
+        Assert.assertEquals(0, b1.rank(-5L));
+        Assert.assertEquals(0, b1.rank(0L));
+        Assert.assertEquals(values.length, b1.rank(Long.MAX_VALUE));
+        Assert.assertEquals(1002, b1.rank(boundary * 6));
+
+        Assert.assertEquals(1000, b1.rangeCardinality(0L, boundary));
+        Assert.assertEquals(2, b1.rangeCardinality(boundary, boundary * 5));
+        Assert.assertEquals(51, b1.rangeCardinality(boundary * 5 - 1, boundary * 7 + 50));
+        Assert.assertEquals(0, b1.rangeCardinality(10L, 10L));
+        Assert.assertEquals(1000, b1.rangeCardinality(Long.MIN_VALUE, boundary));
+        Assert.assertEquals(values.length, b1.rangeCardinality(Long.MIN_VALUE, Long.MAX_VALUE));
+        RoaringUnit unit = new RoaringUnit();
+        unit.add(1L);
+        unit.add(5L);
+        unit.add(10L);
+        Assert.assertEquals(3, unit.rangeCardinality(Long.MIN_VALUE, 100L));
+
+        RoaringUnit wide = new RoaringUnit();
+        wide.add(3L);
+        wide.add(10L, boundary);
+        long j = 1L << 31;
+        Assert.assertEquals(3L, wide.select(0));
+        Assert.assertEquals(j + 9, wide.select(j));
+        Assert.assertEquals(boundary - 1, wide.select(wide.cardinality() - 1));
+        try (OffHeapRoaringUnit offHeap = new OffHeapRoaringUnit()) {
+            offHeap.add(3L);
+            offHeap.add(10L, boundary);
+            Assert.assertEquals(j + 9, offHeap.select(j));
+            Assert.assertEquals(boundary - 1, offHeap.select(offHeap.cardinality() - 1));
+        }
+
+        b1.remove(boundary * 3 + 5);
+        Assert.assertEquals(boundary * 5 - 1, b1.select(1000));
+        try {
+            b1.select(b1.cardinality());
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+
+    @Test
+    public void peekableIterator() {
+        long boundary = RoaringUnit.maxSize();
+        ExtRoaringBitmap b1 = new ExtRoaringBitmap();
+        b1.add(3L);
+        b1.add(boundary - 1);
+        b1.extend(boundary * 4);
+        b1.add(boundary * 4 + 7);
+        b1.add(boundary * 6 + 1, boundary * 6 + 4);
+
+        PeekableLongIterator itr = b1.peekableLongIterator();
+        Assert.assertTrue(itr.hasNext());
+        Assert.assertEquals(3L, itr.peekNext());
+        Assert.assertEquals(3L, itr.next());
+        itr.advanceIfNeeded(0L);
+        Assert.assertEquals(boundary - 1, itr.peekNext());
+        itr.advanceIfNeeded(boundary);
+        Assert.assertTrue(itr.hasNext());
+        Assert.assertEquals(boundary * 4 + 7, itr.next());
+        itr.advanceIfNeeded(boundary * 6 + 2);
+        Assert.assertTrue(itr.hasNext());
+        Assert.assertEquals(boundary * 6 + 2, itr.next());
+        Assert.assertEquals(boundary * 6 + 3, itr.next());
+        itr.advanceIfNeeded(Long.MAX_VALUE);
+        Assert.assertFalse(itr.hasNext());
+
+        itr = b1.peekableLongIterator();
+        itr.advanceIfNeeded(boundary * 5);
+        Assert.assertEquals(boundary * 6 + 1, itr.next());
+
+        // 利用advanceIfNeeded交替跳跃求交集
+        ExtRoaringBitmap b2 = new ExtRoaringBitmap();
+        for (long i = 0; i < 2000; i++) {
+            b2.add(i * 7 + (i % 5) * boundary);
+        }
+        b2.add(boundary * 6 + 3);
+        long count = 0;
+        PeekableLongIterator i1 = b1.peekableLongIterator();
+        PeekableLongIterator i2 = b2.peekableLongIterator();
+        while (i1.hasNext() && i2.hasNext()) {
+            long v1 = i1.peekNext();
+            long v2 = i2.peekNext();
+            if (v1 == v2) {
+                count++;
+                i1.next();
+                i2.next();
+            } else if (v1 < v2) {
+                i1.advanceIfNeeded(v2);
+            } else {
+                i2.advanceIfNeeded(v1);
+            }
+        }
+        Assert.assertEquals(b1.and(b2).cardinality(), count);
+    }
+
+
+    @Test
+    public void rangeAndReverseIterator() {
+        long boundary = RoaringUnit.maxSize();
+        ExtRoaringBitmap b1 = new ExtRoaringBitmap();
+        b1.add(5L, 10L);
+        b1.extend(boundary * 3);
+        b1.add(boundary * 3 - 2, boundary * 3 + 2);
+        b1.add(boundary * 8 + 1);
+
+        LongIterator itr = b1.longIterator(7L, boundary * 3);
+        long[] expected = {7L, 8L, 9L, boundary * 3 - 2, boundary * 3 - 1};
+        for (long v : expected) {
+            Assert.assertTrue(itr.hasNext());
+            Assert.assertEquals(v, itr.next());
+        }
+        Assert.assertFalse(itr.hasNext());
+        Assert.assertFalse(b1.longIterator(boundary * 4, boundary * 8).hasNext());
+        Assert.assertFalse(b1.longIterator(20L, 10L).hasNext());
+        itr = b1.longIterator(boundary * 3 + 1, Long.MAX_VALUE);
+        Assert.assertTrue(itr.hasNext());
+        Assert.assertEquals(boundary * 3 + 1, itr.next());
+        Assert.assertTrue(itr.hasNext());
+        Assert.assertEquals(boundary * 8 + 1, itr.next());
+        Assert.assertFalse(itr.hasNext());
+
+        long[] values = new long[(int) b1.cardinality()];
+        LongIterator forward = b1.longIterator();
+        for (int i = 0; forward.hasNext(); i++) {
+            values[i] = forward.next();
+        }
+        LongIterator reverse = b1.reverseLongIterator();
+        for (int i = values.length - 1; i >= 0; i--) {
+            Assert.assertTrue(reverse.hasNext());
+            Assert.assertEquals(values[i], reverse.next());
+        }
+        Assert.assertFalse(reverse.hasNext());
+        Assert.assertFalse(new ExtRoaringBitmap().reverseLongIterator().hasNext());
+    }
+
+
+    @Test
+    public void batchIterator() {
+        long boundary = RoaringUnit.maxSize();
+        ExtRoaringBitmap b1 = new ExtRoaringBitmap();
+        b1.add(0L, 1000L);
+        b1.extend(boundary * 2);
+        b1.add(boundary * 2 - 3, boundary * 2 + 3);
+        b1.add(boundary * 9 + 17);
+
+        long[] buffer = new long[64];
+        LongIterator expected = b1.longIterator();
+        LongBatchIterator itr = b1.batchIterator();
+        long total = 0;
+        int n;
+        while ((n = itr.nextBatch(buffer)) > 0) {
+            for (int i = 0; i < n; i++) {
+                Assert.assertTrue(expected.hasNext());
+                Assert.assertEquals(expected.next(), buffer[i]);
+            }
+            total += n;
+        }
+        Assert.assertFalse(expected.hasNext());
+        Assert.assertFalse(itr.hasNext());
+        Assert.assertEquals(b1.cardinality(), total);
+
+        // 跨越unit bitmap时整批填满
+        itr = b1.batchIterator();
+        Assert.assertEquals(998, itr.nextBatch(new long[1000], 0, 998));
+        Assert.assertEquals(9, itr.nextBatch(buffer, 5, 10));
+        Assert.assertEquals(998L, buffer[5]);
+        Assert.assertEquals(boundary * 2 - 3, buffer[7]);
+        Assert.assertEquals(boundary * 2 + 2, buffer[12]);
+        Assert.assertEquals(boundary * 9 + 17, buffer[13]);
+        Assert.assertEquals(0, new ExtRoaringBitmap().batchIterator().nextBatch(buffer));
+    }
+
+
+    @Test
+    public void forEachAndStream() {
+        long boundary = RoaringUnit.maxSize();
+        ExtRoaringBitmap b1 = new ExtRoaringBitmap();
+        b1.add(10L, 200_000L);
+        b1.extend(boundary * 4);
+        b1.add(boundary * 2 + 1, boundary * 2 + 5000);
+        b1.add(boundary * 3 + 70_000L, boundary * 3 + 300_000L);
+        b1.add(boundary * 6 - 1);
+
+        long expectedSum = 0L;
+        LongIterator itr = b1.longIterator();
+        while (itr.hasNext()) {
+            expectedSum += itr.next();
+        }
+        long[] sumAndCount = new long[2];
+        long[] previous = {-1L};
+        b1.forEach(v -> {
+            Assert.assertTrue(v > previous[0]);
+            previous[0] = v;
+            sumAndCount[0] += v;
+            sumAndCount[1]++;
+        });
+        Assert.assertEquals(expectedSum, sumAndCount[0]);
+        Assert.assertEquals(b1.cardinality(), sumAndCount[1]);
+
+        Spliterator.OfLong spliterator = b1.spliterator();
+        Assert.assertEquals(b1.cardinality(), spliterator.getExactSizeIfKnown());
+        Assert.assertTrue(spliterator.hasCharacteristics(Spliterator.SORTED | Spliterator.SUBSIZED));
+        Spliterator.OfLong prefix = spliterator.trySplit();
+        Assert.assertNotNull(prefix);
+        Assert.assertEquals(b1.cardinality(), prefix.estimateSize() + spliterator.estimateSize());
+        Assert.assertEquals(prefix.estimateSize(), StreamSupport.longStream(prefix, false).count());
+
+        Assert.assertEquals(b1.cardinality(), b1.stream().count());
+        Assert.assertEquals(expectedSum, b1.stream().parallel().sum());
+        Assert.assertArrayEquals(b1.stream().toArray(), b1.stream().parallel().toArray());
+        Assert.assertEquals(0, new ExtRoaringBitmap().stream().parallel().count());
+
+        RoaringUnit unit = new RoaringUnit();
+        unit.add(0L, 300_000L);
+        unit.add(boundary - 1);
+        Assert.assertEquals(unit.cardinality(), unit.stream().parallel().count());
+        Assert.assertEquals(boundary - 1, unit.stream().parallel().max().getAsLong());
+    }
+
+
+    private static long sum(ExtRoaringBitmap bitmap) {
+        long c = 0;
+        LongIterator itr = bitmap.longIterator();
+        long last = -1;
+        while (itr.hasNext()) {
+            last = itr.next();
+            c++;
+        }
+        Assert.assertEquals(last, bitmap.last());
+        return c;
+    }
+
+
     @Test
     public void test() {
-        long v2 = 1024001002312L % Integer.MAX_VALUE;
+        long v2 = 1024001002312L & (RoaringUnit.maxSize() - 1);
         System.out.println(v2);
-        long v3 = 1022202215972L % Integer.MAX_VALUE;
+        long v3 = 1022202215972L >>> RoaringUnit.UNIT_BITS;
         System.out.println(v3);
     }
 }
@@ -0,0 +1,70 @@
+package org.chobit.bitmap.benchmark;
+
+import org.chobit.bitmap.ExtRoaringBitmap;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比逐个add(long)与addMany(long[], int, int)的批量写入耗时
+ *
+ * @author robin
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BulkAddBenchmark {
+
+
+    @Param({"1000000"})
+    public int count;
+
+
+    private long[] values;
+
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        values = new long[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = random.nextInt(1 << 24) + ((long) random.nextInt(4) << 32);
+        }
+        Arrays.sort(values);
+    }
+
+
+    @Benchmark
+    public ExtRoaringBitmap add() {
+        ExtRoaringBitmap bitmap = new ExtRoaringBitmap();
+        for (long v : values) {
+            bitmap.add(v);
+        }
+        return bitmap;
+    }
+
+
+    @Benchmark
+    public ExtRoaringBitmap addMany() {
+        ExtRoaringBitmap bitmap = new ExtRoaringBitmap();
+        bitmap.addMany(values, 0, values.length);
+        return bitmap;
+    }
+
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(BulkAddBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+}
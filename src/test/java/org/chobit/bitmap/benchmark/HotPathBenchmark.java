@@ -0,0 +1,78 @@
+package org.chobit.bitmap.benchmark;
+
+import org.chobit.bitmap.ExtRoaringBitmap;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 验证add/remove/check热路径上没有对象分配
+ * <p>
+ * 使用GC profiler运行，各项的gc.alloc.rate.norm应为0 B/op
+ *
+ * @author robin
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HotPathBenchmark {
+
+
+    private static final int MASK = (1 << 12) - 1;
+
+
+    private ExtRoaringBitmap bitmap;
+
+    private long[] values;
+
+    private int i;
+
+
+    @Setup
+    public void setup() {
+        bitmap = new ExtRoaringBitmap();
+        values = new long[MASK + 1];
+        for (int j = 0; j < values.length; j++) {
+            values[j] = ((long) (j & 7) << 32) + j * 3L;
+            bitmap.add(values[j]);
+        }
+        bitmap.add(1L << 34, (1L << 34) + 65536);
+    }
+
+
+    @Benchmark
+    public boolean check() {
+        return bitmap.check(values[i++ & MASK]);
+    }
+
+
+    @Benchmark
+    public void add() {
+        bitmap.add(values[i++ & MASK]);
+    }
+
+
+    @Benchmark
+    public void removeAndAdd() {
+        long v = (1L << 34) + (i++ & MASK);
+        bitmap.remove(v);
+        bitmap.add(v);
+    }
+
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(HotPathBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,77 @@
+package org.chobit.bitmap.benchmark;
+
+import org.chobit.bitmap.ExtRoaringBitmap;
+import org.chobit.bitmap.LongBatchIterator;
+import org.chobit.bitmap.LongIterator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比逐个读取与批量读取全部元素的开销
+ *
+ * @author robin
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IterationBenchmark {
+
+
+    private ExtRoaringBitmap bitmap;
+
+    private final long[] buffer = new long[256];
+
+
+    @Setup
+    public void setup() {
+        bitmap = new ExtRoaringBitmap();
+        for (long index = 0; index < 8; index++) {
+            long base = index << 32;
+            bitmap.add(base, base + 500_000);
+            for (long j = 0; j < 500_000; j++) {
+                bitmap.add(base + 1_000_000 + j * 3);
+            }
+        }
+    }
+
+
+    @Benchmark
+    public long iterator() {
+        long sum = 0L;
+        LongIterator itr = bitmap.longIterator();
+        while (itr.hasNext()) {
+            sum += itr.next();
+        }
+        return sum;
+    }
+
+
+    @Benchmark
+    public long batchIterator() {
+        long sum = 0L;
+        LongBatchIterator itr = bitmap.batchIterator();
+        int n;
+        while ((n = itr.nextBatch(buffer)) > 0) {
+            for (int i = 0; i < n; i++) {
+                sum += buffer[i];
+            }
+        }
+        return sum;
+    }
+
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(IterationBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,74 @@
+package org.chobit.bitmap.benchmark;
+
+import org.chobit.bitmap.ExtRoaringBitmap;
+import org.chobit.bitmap.RoaringUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 验证or()和deserialize()的耗时随unit数量线性增长
+ * <p>
+ * 耗时除以unitCount后应大致保持不变
+ *
+ * @author robin
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UnitScalingBenchmark {
+
+
+    @Param({"256", "1024", "4096", "16384"})
+    public int unitCount;
+
+
+    private ExtRoaringBitmap b1;
+
+    private ExtRoaringBitmap b2;
+
+    private byte[] bytes;
+
+
+    @Setup
+    public void setup() throws IOException {
+        b1 = new ExtRoaringBitmap();
+        b2 = new ExtRoaringBitmap();
+        for (long i = 0; i < unitCount; i++) {
+            long base = i * RoaringUnit.maxSize();
+            for (int j = 0; j < 16; j++) {
+                b1.add(base + j * 2);
+                b2.add(base + j * 3);
+            }
+        }
+        bytes = b1.toBytes();
+    }
+
+
+    @Benchmark
+    public ExtRoaringBitmap or() {
+        return b1.or(b2);
+    }
+
+
+    @Benchmark
+    public ExtRoaringBitmap deserialize() throws IOException {
+        return new ExtRoaringBitmap().fromBytes(bytes);
+    }
+
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(UnitScalingBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+}